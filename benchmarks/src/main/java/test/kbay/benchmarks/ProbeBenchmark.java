@@ -0,0 +1,96 @@
+package test.kbay.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import test.kbay.profiler.ProfilerEngine;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the probes that instrumented code calls: startProfiling + finishProfiling pair and
+ * processmemoryUsage. Every thread keeps openContexts calls open below the measured one, so the cost
+ * is measured for deep call stacks as well. Thread count is set by the subclass.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class ProbeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Engine {
+        int  methodId;
+        File resFile;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            resFile = Profiler.start("hist:1000");
+            methodId = ProfilerEngine.registerMethod("test.kbay.benchmarks.ProbeBenchmark.measured()");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Profiler.stop(resFile);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OpenContexts {
+        @Param({"1", "10", "100", "1000"})
+        int openContexts;
+
+        @Setup(Level.Trial)
+        public void open(Engine engine) {
+            int outerId = ProfilerEngine.registerMethod("test.kbay.benchmarks.ProbeBenchmark.outer()");
+            for (int i = 0; i < openContexts; i++)
+                ProfilerEngine.startProfiling(outerId, null);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            for (int i = 0; i < openContexts; i++)
+                ProfilerEngine.finishProfiling();
+        }
+    }
+
+    @Benchmark
+    public void startFinish(Engine engine, OpenContexts contexts) {
+        ProfilerEngine.startProfiling(engine.methodId, null);
+        ProfilerEngine.finishProfiling();
+    }
+
+    @Benchmark
+    public void memoryUsage(OpenContexts contexts) {
+        ProfilerEngine.processmemoryUsage(64);
+    }
+
+    @Threads(1)
+    public static class Threads1 extends ProbeBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends ProbeBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends ProbeBenchmark {
+    }
+
+    @Threads(64)
+    public static class Threads64 extends ProbeBenchmark {
+    }
+}
@@ -0,0 +1,64 @@
+package test.kbay.benchmarks;
+
+import test.kbay.AgentConfig;
+import test.kbay.profiler.ProfilerEngine;
+import test.kbay.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Engine setup shared by the benchmarks. Results go to a binary file and are dropped when the writer
+ * is behind, like on a busy server. Console output would measure the console.
+ */
+final class Profiler {
+    private Profiler() {
+    }
+
+    /**
+     * Errors only, like the agent default. Log level of the engine without the agent is Trace
+     */
+    static void setLogLevel() {
+        Log.setLogConfig(null, "Err");
+    }
+
+    /**
+     * @param args - extra agent arguments. Example: hist:1000
+     * @return result file, delete it with stop
+     */
+    static File start(String args) throws Exception {
+        setLogLevel();
+        File resFile = File.createTempFile("profiler-benchmark", ".bin");
+        String resArgs = "resultFile:" + resFile.getPath() + ",resultFormat:binary,resultQueueFull:drop";
+        ProfilerEngine.init(new AgentConfig(args.isEmpty() ? resArgs : args + "," + resArgs));
+        return resFile;
+    }
+
+    static void stop(File resFile) {
+        ProfilerEngine.shutdown();
+        if (!resFile.delete())
+            resFile.deleteOnExit();
+    }
+
+    /**
+     * Writer that discards the output
+     */
+    static final class NullWriter extends Writer {
+        @Override
+        public void write(char[] buf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package test.kbay.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import test.kbay.profiler.ProfilerEngine;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading results with a full history: text results list and the streamed JSON page
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultsBenchmark {
+    @Param({"1000", "100000"})
+    int historySize;
+
+    private File resFile;
+    private final PrintWriter writer = new PrintWriter(new Profiler.NullWriter());
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        resFile = Profiler.start("hist:" + historySize);
+        int[] methodIds = new int[10];
+        for (int i = 0; i < methodIds.length; i++)
+            methodIds[i] = ProfilerEngine.registerMethod("test.kbay.benchmarks.ResultsBenchmark.handler" + i + "()");
+        for (int i = 0; i < historySize; i++) {
+            ProfilerEngine.startProfiling(methodIds[i % methodIds.length], null);
+            ProfilerEngine.processmemoryUsage(i);
+            ProfilerEngine.finishProfiling();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Profiler.stop(resFile);
+    }
+
+    @Benchmark
+    public List<String> getResults() {
+        return ProfilerEngine.getResults();
+    }
+
+    @Benchmark
+    public boolean jsonResults() {
+        return ProfilerEngine.onPrintJsonResults(writer, Integer.MAX_VALUE, -1, null);
+    }
+}
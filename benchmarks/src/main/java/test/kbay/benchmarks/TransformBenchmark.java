@@ -0,0 +1,74 @@
+package test.kbay.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import test.kbay.AgentConfig;
+import test.kbay.AgentFileTransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of AgentFileTransformer.transform. Skipped class is the common case, every class the JVM loads
+ * goes through it. Instrumented class is done once per class, transformer remembers instrumented classes,
+ * so a new transformer is made for every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+    private static final String TARGET = "test/kbay/benchmarks/TransformTarget";
+    private static final String SKIPPED = "test/kbay/benchmarks/SkippedClass";
+
+    @State(Scope.Thread)
+    public static class Skipped {
+        AgentConfig config;
+        byte[] classBytes;
+        AgentFileTransformer transformer;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            Profiler.setLogLevel();
+            config = new AgentConfig("func2prof:test.kbay.benchmarks.TransformTarget.handle,dispatch:test.kbay.benchmarks.TransformTarget.dispatch");
+            try (InputStream in = TransformBenchmark.class.getResourceAsStream("/" + TARGET + ".class")) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                for (int len; (len = in.read(buf)) > 0; )
+                    out.write(buf, 0, len);
+                classBytes = out.toByteArray();
+            }
+            transformer = new AgentFileTransformer(config);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Instrumented extends Skipped {
+        @Setup(Level.Invocation)
+        public void newTransformer() {
+            transformer = new AgentFileTransformer(config);
+        }
+    }
+
+    @Benchmark
+    public byte[] instrumented(Instrumented state) throws Exception {
+        return state.transformer.transform(TransformBenchmark.class.getClassLoader(), TARGET, null, null, state.classBytes);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public byte[] skipped(Skipped state) throws Exception {
+        return state.transformer.transform(TransformBenchmark.class.getClassLoader(), SKIPPED, null, null, state.classBytes);
+    }
+}
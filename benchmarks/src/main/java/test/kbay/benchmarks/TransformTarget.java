@@ -0,0 +1,17 @@
+package test.kbay.benchmarks;
+
+/**
+ * Class instrumented by TransformBenchmark
+ */
+public class TransformTarget {
+    private int calls;
+
+    public int handle(String request) {
+        calls++;
+        return request.length() + calls;
+    }
+
+    public void dispatch(Object request, Object response) {
+        calls++;
+    }
+}
@@ -7,7 +7,6 @@ import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
 import com.google.monitoring.runtime.instrumentation.Sampler;
 
 import java.lang.instrument.Instrumentation;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Profiler Agent - starting [point for the whole Agent
@@ -45,14 +44,16 @@ public class Agent {
         final boolean need2printResults = config.resFn==null;
 
         // Create shout down hook first. Note, it doesn't survive kill signal
-        // When app is finished, we need to print results.
+        // When app is finished, we need to write pending results and print history.
         // Note: Results from history will be printed second time.
         //      No needs to stre then second time
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
+                ProfilerEngine.shutdown();
                 if (need2printResults) {
                     ProfilerEngine.printResults();
                 }
+                Log.shutdown();
             }
         });
 
@@ -61,17 +62,17 @@ public class Agent {
         AgentFileTransformer transformer = new AgentFileTransformer(config);
         instrumentation.addTransformer(transformer);
 
-        // Prepare objects that we need to track...
-        // Set has a '/' separated class names.
-        final ConcurrentHashMap<String,String> trackingObjectsSet = new ConcurrentHashMap<>();
-        for (String obj2tr : config.object2track) {
-            obj2tr = obj2tr.replace('.', '/');
-            trackingObjectsSet.put(obj2tr,obj2tr);
-        }
-
         // Now we need to instrument
         //transformer.instrumentLoadedClasses();
 
+        // Allocation hook is expensive, every 'new' goes through it. Not needed if application types
+        // are counted by constructors and there is no memory accounting
+        if (!config.needAllocationHook()) {
+            Log.info("Allocation hook is not needed");
+            return;
+        }
+
+        // Tracking objects and sampling are handled by the engine
         AllocationRecorder.addSampler(new Sampler() {
             public void sampleAllocation(int count, String desc, Object newObj, long size) {
                 /*System.out.println("I just allocated the object " + newObj
@@ -82,10 +83,7 @@ public class Agent {
                 //I just allocated the object [C@76e7a7b1 of type char whose size is 296
                 //It's an array of size 140
 
-                if (trackingObjectsSet.contains(desc))
-                    ProfilerEngine.processTrackingObject();
-
-                ProfilerEngine.processmemoryUsage(size);
+                ProfilerEngine.processAllocation(desc, count, size);
             }
         });
     }
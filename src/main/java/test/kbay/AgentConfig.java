@@ -19,13 +19,44 @@ public class AgentConfig {
     // History of stored profile calls
     public int profileHistoryLen = 50;
 
+    // Mean interval in bytes between sampled allocations. 0 - every allocation is processed
+    public long allocSampleBytes = 0;
+
+    // Whole memory accounting with java-allocation-instrumenter. Without it only obj2track types are counted
+    public boolean memTrack = true;
+
+    // Number of top allocated types to report per call. 0 - no per type tracking
+    public int topTypes = 0;
+
+    // CPU time per call: off, thread CPU time, thread CPU and user time
+    public static final int CPU_TIME_OFF = 0;
+    public static final int CPU_TIME_ON = 1;
+    public static final int CPU_TIME_USER = 2;
+    public int cpuTime = CPU_TIME_OFF;
+
+    // Link nested calls into the call tree and aggregate it over requests. Max number of aggregated nodes
+    public boolean callTree = false;
+    public int callTreeNodes = 1000;
+
+    // Measure time and memory spent in the agent hooks, per call and per hook
+    public boolean overhead = false;
+
     // Object constructors that we are tracking
     public Set<String> object2track = new HashSet<>();
     // Function to profile. For Spring it is org.springframework.web.servlet.DispatcherServlet.doDispatch
     public Set<String> funcNames2profile = new HashSet<>();
 
+    // Packages where tasks submitted to java.util.concurrent are attributed to the submitting call. Example: my.app
+    public Set<String> asyncPackages = new HashSet<>();
+
     // Dispatcher function name to show results in the browser
     public Set<String>  functNameDispatcher = new HashSet<>();
+    // URL path of OpenMetrics page for Prometheus. Served by the dispatcher
+    public String metricsPath = "/profiler/metrics";
+    // Port of the built-in HTTP server with results and metrics. -1 - no server, 0 - any free port
+    public int httpPort = -1;
+    // Address the built-in HTTP server binds to. Loopback by default, the pages are not protected
+    public String httpHost = "127.0.0.1";
 
     // Log file name. If null, console will be used.
     public String logFn;
@@ -33,6 +64,16 @@ public class AgentConfig {
     public String logLevel = "Err";// "Debug";
     // Result file name. If null, console will be used.
     public String resFn;
+    // Result file format: text or binary. Binary file is read with ResultDecoder
+    public boolean resultBinary = false;
+    // Live metrics file, memory mapped. If null, there is no file
+    public String metricsFn;
+    // Live metrics file update interval
+    public int metricsIntervalMs = 1000;
+    // Max number of results waiting for writing into the result file
+    public int resultQueueLen = 8192;
+    // What to do when result queue is full: drop the result or wait
+    public boolean resultQueueDrop = false;
 
     /**
      * AgentConfig parse config data. Please call validate method after to check if all necessary data is available.
@@ -70,26 +111,105 @@ public class AgentConfig {
                     throw new ProfException("Unable to parse config argument: '" + arg + "', expected integer value");
                 }
             }
+            else if ("allocSample".equals(key)) {
+                allocSampleBytes = parseInt(arg, value);
+                if (allocSampleBytes < 0)
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected positive value");
+            }
+            else if ("memTrack".equals(key)) {
+                memTrack = parseBoolean(arg, value);
+            }
+            else if ("topTypes".equals(key)) {
+                topTypes = parseInt(arg, value);
+                if (topTypes < 0)
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected positive value");
+            }
+            else if ("cpuTime".equals(key)) {
+                if ("true".equalsIgnoreCase(value))
+                    cpuTime = CPU_TIME_ON;
+                else if ("user".equalsIgnoreCase(value))
+                    cpuTime = CPU_TIME_USER;
+                else if ("false".equalsIgnoreCase(value))
+                    cpuTime = CPU_TIME_OFF;
+                else
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected true, user or false");
+            }
+            else if ("callTree".equals(key)) {
+                callTree = parseBoolean(arg, value);
+            }
+            else if ("overhead".equals(key)) {
+                overhead = parseBoolean(arg, value);
+            }
+            else if ("treeNodes".equals(key)) {
+                callTreeNodes = parseInt(arg, value);
+                if (callTreeNodes <= 0)
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected positive value");
+            }
             else if ("obj2track".equals(key)) {
                 object2track.add(value);
             }
             else if ("func2prof".equals(key)) {
                 funcNames2profile.add(value);
             }
+            else if ("async".equals(key)) {
+                asyncPackages.add(value);
+            }
             else if ("dispatch".equals(key)) {
                 functNameDispatcher.add(value);
             }
+            else if ("metricsPath".equals(key)) {
+                if (!value.startsWith("/"))
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected path that starts with '/'");
+                metricsPath = value;
+            }
+            else if ("httpPort".equals(key)) {
+                httpPort = parseInt(arg, value);
+                if (httpPort < 0 || httpPort > 65535)
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected port 0-65535");
+            }
+            else if ("httpHost".equals(key)) {
+                httpHost = value;
+            }
             else if ("logFile".equals(key)) {
                 logFn = value;
             }
             else if ("resultFile".equals(key)) {
                 resFn = value;
             }
+            else if ("resultFormat".equals(key)) {
+                if ("binary".equals(value))
+                    resultBinary = true;
+                else if ("text".equals(value))
+                    resultBinary = false;
+                else
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected text or binary");
+            }
+            else if ("metricsFile".equals(key)) {
+                metricsFn = value;
+            }
+            else if ("metricsInterval".equals(key)) {
+                metricsIntervalMs = parseInt(arg, value);
+                if (metricsIntervalMs <= 0)
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected positive value");
+            }
+            else if ("resultQueue".equals(key)) {
+                resultQueueLen = parseInt(arg, value);
+                if (resultQueueLen <= 0)
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected positive value");
+            }
+            else if ("resultQueueFull".equals(key)) {
+                if ("drop".equals(value))
+                    resultQueueDrop = true;
+                else if ("block".equals(value))
+                    resultQueueDrop = false;
+                else
+                    throw new ProfException("Unable to parse config argument: '" + arg + "', expected drop or block");
+            }
             else if ("logLevel".equals(key)) {
                 logLevel = value;
             }
             else if ("short".equals(key)) {
-                shortOutput = "true".equalsIgnoreCase(value);
+                shortOutput = parseBoolean(arg, value);
             }
             else {
                 throw new ProfException("Unknown config argument: '" + arg + "'");
@@ -100,6 +220,47 @@ public class AgentConfig {
             functNameDispatcher.add("org.springframework.web.servlet.DispatcherServlet.doDispatch");
     }
 
+    private static int parseInt(String arg, String value) throws ProfException {
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (Exception ex) {
+            throw new ProfException("Unable to parse config argument: '" + arg + "', expected integer value");
+        }
+    }
+
+    private static boolean parseBoolean(String arg, String value) throws ProfException {
+        if ("true".equalsIgnoreCase(value))
+            return true;
+        if ("false".equalsIgnoreCase(value))
+            return false;
+        throw new ProfException("Unable to parse config argument: '" + arg + "', expected true or false");
+    }
+
+    /**
+     * JDK classes can't be instrumented to count objects: they are loaded before the agent and
+     * can't see agent classes. They are counted by the allocation hook.
+     * @param className - class name. Example: java.lang.String
+     * @return true if objects of the class can be counted by instrumented constructors
+     */
+    public static boolean isTrackedByConstructor(String className) {
+        return !(className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("jdk.") ||
+                className.startsWith("sun.") || className.startsWith("com.sun."));
+    }
+
+    /**
+     * @return true if allocation hook is needed: memory accounting is on or there are JDK types to track
+     */
+    public boolean needAllocationHook() {
+        if (memTrack)
+            return true;
+        for (String obj2tr : object2track) {
+            if (!isTrackedByConstructor(obj2tr))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Usage info for params
      * @return string with usage info
@@ -109,15 +270,47 @@ public class AgentConfig {
         sb.append("All parameters are comma separated (','). objCtor and func2prof can be included multiple times\n");
         sb.append("Example: objCtor=java.lang.String;objCtor=java.lang.Number;func2prof=my.test.method\n");
         sb.append("  hist:50                    - how many calls tp profiles funtions profiler keeps in the history\n");
-        sb.append("  obj2track:java.lang.String - object usage that need to be profiled\n");
+        sb.append("  allocSample:524288         - Process only sampled allocations, mean interval in bytes. Memory and\n");
+        sb.append("                             objects become estimates with error bounds. Default 0: every allocation\n");
+        sb.append("  memTrack:true|false        - Whole memory accounting. Default is true. Without it allocations are not\n");
+        sb.append("                             hooked unless obj2track has JDK types\n");
+        sb.append("  topTypes:5                 - Report top allocated types per call. Default 0: no per type tracking\n");
+        sb.append("  cpuTime:false|true|user    - Thread CPU time per call. 'user' adds user time, it is more expensive:\n");
+        sb.append("                             on Linux JVM reads it from /proc. Default is false\n");
+        sb.append("  callTree:true|false        - Link nested func2prof calls into a call tree with inclusive and exclusive\n");
+        sb.append("                             time and memory, and merge the trees of all requests. Default is false\n");
+        sb.append("  treeNodes:1000             - Max number of nodes in the merged call tree\n");
+        sb.append("  overhead:true|false        - Measure time and memory spent in the agent hooks. Reported per call and\n");
+        sb.append("                             per hook on the results page. Default is false\n");
+        sb.append("  obj2track:java.lang.String - object usage that need to be profiled. Application types are counted\n");
+        sb.append("                             by their constructors, exactly even with allocSample. JDK types are\n");
+        sb.append("                             counted by the allocation hook\n");
         sb.append("  func2prof:my.test.method   - method that we need to profile. If method\n");
         sb.append("                             has argument javax.servlet.http.HttpServletRequest, profile call will be \n");
         sb.append("                             updated with url\n");
+        sb.append("  async:my.app               - Package where Runnable, Callable and Supplier submitted to java.util.concurrent\n");
+        sb.append("                             executors are wrapped. Worker time and allocations go to the submitting call.\n");
+        sb.append("                             One-shot hand offs only: execute, submit, invokeAll, invokeAny, schedule and\n");
+        sb.append("                             CompletableFuture *Async. Periodic tasks are not wrapped. Comparable and\n");
+        sb.append("                             RunnableFuture tasks keep their type and are not wrapped. Executor sees other\n");
+        sb.append("                             tasks as wrappers: its queue and the list of shutdownNow hold wrappers\n");
         sb.append("  dispatch:org.springframework.web.servlet.DispatcherServlet.doDispatch - Dispatch method for your webserver.\n");
         sb.append("                             If this method exist, you will get results on a webpage with any url that ends with '/profiler'\n");
+        sb.append("  metricsPath:/profiler/metrics - URL path suffix of the OpenMetrics page for Prometheus. Served by the dispatcher\n");
+        sb.append("  httpPort:<port>            - Built-in HTTP server with the results and metrics pages on own threads.\n");
+        sb.append("                             Works without dispatcher. 0 - any free port, it is logged with Info level\n");
+        sb.append("  httpHost:127.0.0.1         - Address the built-in HTTP server binds to. Default is loopback only,\n");
+        sb.append("                             0.0.0.0 - all interfaces. Pages are not protected, expose them with care\n");
         sb.append("  logFile:<file name>        - Logs output to file insted of console\n");
         sb.append("  logLevel:Err|Warn|Info|Debug|Trace - Logs level. Default is Err\n");
         sb.append("  resultFile:<file name>     - Result output to file instead of console\n");
+        sb.append("  resultFormat:text|binary   - Result file format. Binary is compact and cheap to write, decode it with\n");
+        sb.append("                             java -jar profiler-1.0.jar [-format text|csv|json] [-follow] <file>\n");
+        sb.append("  metricsFile:<file name>    - Live metrics file, memory mapped. Method totals and recent calls. Read it with\n");
+        sb.append("                             java -cp profiler-1.0.jar test.kbay.MetricsReader [-watch <ms>] <file>\n");
+        sb.append("  metricsInterval:1000       - Live metrics file update interval in ms\n");
+        sb.append("  resultQueue:8192           - How many results can wait for writing into the result file\n");
+        sb.append("  resultQueueFull:drop|block - Drop the result or wait when result queue is full. Default is block\n");
         return sb.toString();
     }
 
@@ -134,6 +327,9 @@ public class AgentConfig {
         if ( funcNames2profile.size() == 0 )
             res.append("Params error: Please specify functions that profiler need to track\n");
 
+        if ( resultBinary && resFn == null )
+            res.append("Params error: Please specify resultFile for binary result format\n");
+
         if (res.length()==0)
             return null;
 
@@ -147,6 +343,13 @@ public class AgentConfig {
     public String getParamsValueStr() {
         StringBuilder sb = new StringBuilder();
         sb.append("hist:"+profileHistoryLen+"\n");
+        sb.append("allocSample:"+allocSampleBytes+"\n");
+        sb.append("memTrack:"+memTrack+"\n");
+        sb.append("topTypes:"+topTypes+"\n");
+        sb.append("cpuTime:"+(cpuTime==CPU_TIME_USER?"user":(cpuTime==CPU_TIME_ON?"true":"false"))+"\n");
+        sb.append("callTree:"+callTree+"\n");
+        sb.append("treeNodes:"+callTreeNodes+"\n");
+        sb.append("overhead:"+overhead+"\n");
         sb.append("obj2track "+ object2track.size() +" items:\n");
         for (String s : object2track) {
             sb.append("  "+ s + "\n");
@@ -156,14 +359,26 @@ public class AgentConfig {
         for (String s : funcNames2profile) {
             sb.append("  "+ s + "\n");
         }
+        sb.append("async "+ asyncPackages.size() +" items:\n");
+        for (String s : asyncPackages) {
+            sb.append("  "+ s + "\n");
+        }
         sb.append("dispatch "+functNameDispatcher.size()+" items\n");
         for (String s : functNameDispatcher) {
             sb.append("  " + s + "\n");
         }
 
+        sb.append("metricsPath:"+metricsPath+"\n");
+        sb.append("httpPort:"+(httpPort<0?"NONE":String.valueOf(httpPort))+"\n");
+        sb.append("httpHost:"+httpHost+"\n");
         sb.append("logFile:"+(logFn==null?"CONSOLE":logFn)+"\n");
         sb.append("logLevel:"+(logLevel==null?"Default":logLevel)+"\n");
         sb.append("resultFile:"+(resFn==null?"CONSOLE":resFn)+"\n");
+        sb.append("resultFormat:"+(resultBinary?"binary":"text")+"\n");
+        sb.append("metricsFile:"+(metricsFn==null?"NONE":metricsFn)+"\n");
+        sb.append("metricsInterval:"+metricsIntervalMs+"\n");
+        sb.append("resultQueue:"+resultQueueLen+"\n");
+        sb.append("resultQueueFull:"+(resultQueueDrop?"drop":"block")+"\n");
 
         return sb.toString();
     }
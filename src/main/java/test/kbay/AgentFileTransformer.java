@@ -1,37 +1,89 @@
 package test.kbay;
 
-import javassist.*;
+import org.objectweb.asm.ClassReader;
 import test.kbay.util.Log;
 import test.kbay.util.ProfException;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  *  Profiler File transformer. During class loading process, we need to add some instrumentation:
  *  - Intercept Object creation by instrumenting Object ctor
  *  - Instrument caller functions that needed to profile.
  *  - Optionally for Spring instrument Dispatch method to generate result data on the page.
+ *  - Optionally wrap tasks that application packages submit to java.util.concurrent executors.
  *
  *  Profiler recognize functions by names only, there is no filtering by argument list.
+ *  Probes are woven with ASM by ClassWeaver, frames are computed by LoaderClassWriter.
  */
 public class AgentFileTransformer implements ClassFileTransformer {
 
+    // Lookup tables are filled by ctor and never change, transform reads them without locks.
+
     // key: class, value: methods
     // class has path notation. Example: java/lang/ClassValue
-//    private final HashMap< String, Set<String> > object2track    = new HashMap<>();
 //    private final HashMap< String, Set<String> > mem2track    = new HashMap<>();
     private final HashMap< String, Set<String> > func2profile    = new HashMap<>();
     private final HashMap< String, Set<String>> dispatcher      = new HashMap<>();
 
+    // Application classes that count their objects in constructors. path notation notation Example: my/app/Order
+    private final HashSet<String>  object2track = new HashSet<String>();
+
+    // Packages where executor call sites are instrumented. path notation with '/' at the end. Example: my/app/
+    private final ArrayList<String> asyncPackages = new ArrayList<>();
+
     // classes that needed to be instrumented. path notation notation Example: java/lang/ClassValue
     private final HashSet<String>  need2instrumentClasses = new HashSet<String>();
-    // Already instrumented classes. path notation notation Example: java/lang/ClassValue
-    private final HashSet<String>  instrumentedClasses = new HashSet<String>();
+
+    // Instrumented classes per class loader, key null is bootstrap loader. The same class bytes are
+    // instrumented once in every loader, a parallel load or redefinition with the same bytes gets the same
+    // result. Loaders are weak keys, loader can be unloaded with its classes.
+    // Lock is held only to find the map of the loader, classes are instrumented in parallel.
+    private final WeakHashMap< ClassLoader, ConcurrentHashMap<String, WovenClass> > instrumentedClasses = new WeakHashMap<>();
+
+    // Class instrumented in a loader. One thread weaves it, other threads that load it wait for the bytes
+    private static final class WovenClass {
+        final byte[]             original;
+        final FutureTask<byte[]> woven;
+        final Thread             owner;     // thread that weaves the class
+
+        WovenClass(byte[] original, Callable<byte[]> weave) {
+            this.original = original;
+            this.woven = new FutureTask<>(weave);
+            this.owner = Thread.currentThread();
+        }
+
+        // True if bytes are the result of this instrumentation
+        boolean isWoven(byte[] bytes) {
+            return woven.isDone() && Arrays.equals(get(), bytes);
+        }
+
+        // Waits for the owner, rethrows its failure
+        byte[] get() {
+            try {
+                return woven.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the instrumented class", ex);
+            }
+            catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
 
     /**
      * AgentFileTransformer ctor. Accept function names in format:  <package>.<class>::<Function name>
@@ -57,6 +109,19 @@ public class AgentFileTransformer implements ClassFileTransformer {
             }
             addMetod4Class( dispatcher, func.substring(0,idx), func.substring(idx+1) );
         }
+
+        // JDK types are tracked by allocation hook
+        for ( String obj2tr : config.object2track ) {
+            if (AgentConfig.isTrackedByConstructor(obj2tr)) {
+                String className = obj2tr.replace('.', '/');
+                object2track.add(className);
+                need2instrumentClasses.add(className);
+            }
+        }
+
+        for ( String pkg : config.asyncPackages ) {
+            asyncPackages.add(pkg.replace('.', '/') + "/");
+        }
     }
 
     @Override
@@ -64,168 +129,94 @@ public class AgentFileTransformer implements ClassFileTransformer {
                             ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
 
         // check if class need to be instrumented
-        if ( !need2instrumentClasses.contains(className) ) {
+        if ( !need2instrumentClasses.contains(className) && !isAsyncClass(className) ) {
             Log.trace("Profiler skipping a class " + className + ", not needed to instrument");
             return classfileBuffer;
         }
 
         Log.debug("Transform expects to instrument a class " + className);
 
-        byte[] bytecode = classfileBuffer;
         try {
-            ClassPool cPool = ClassPool.getDefault();
-            CtClass ctClass = cPool.makeClass(new ByteArrayInputStream(bytecode));
-
-            instrumentClass( className, ctClass) ;
-
-            bytecode = ctClass.toBytecode();
+            byte[] bytecode = instrumentClass(className, loader, classBeingRedefined, classfileBuffer);
             Log.debug("Transform finished for: " + className);
-
-        } catch (IOException e) {
-            throw new IllegalClassFormatException(e.getMessage());
+            return bytecode;
         } catch (RuntimeException e) {
-            throw new IllegalClassFormatException(e.getMessage());
-        } catch (CannotCompileException e) {
+            Log.error("Failed to instrument class " + className.replace('/','.'), e);
             throw new IllegalClassFormatException(e.getMessage());
         }
-        return bytecode;
     }
 
     //////////////////////////////////////////////////////////////////
 
     // className has path notation. Example: java/lang/ClassValue
-    private synchronized void instrumentClass( String className, CtClass ctClass) throws CannotCompileException {
-
-        if (instrumentedClasses.contains(className))
-            return;
+    // Returns instrumented bytes. The same bytes for every load of the class in the loader, null only for
+    // redefinition with the bytes that are instrumented already, JVM keeps the class bytes then
+    private byte[] instrumentClass( String className, ClassLoader loader, Class<?> classBeingRedefined, byte[] classfileBuffer ) {
+        ConcurrentHashMap<String, WovenClass> classes = getInstrumentedClasses(loader);
+        while (true) {
+            WovenClass cls = classes.get(className);
+            if (cls != null) {
+                if (classBeingRedefined != null && cls.isWoven(classfileBuffer))
+                    return null;
+                if (Arrays.equals(cls.original, classfileBuffer)) {
+                    // Loading the class from its own instrumentation. Nothing to wait for, original bytes are fine
+                    if (cls.owner == Thread.currentThread() && !cls.woven.isDone())
+                        return null;
+                    return cls.get();
+                }
+            }
 
-        instrumentedClasses.add(className);
+            // New class or new bytes of a redefined class. Only one thread instruments them
+            WovenClass created = new WovenClass(classfileBuffer, () -> weave(className, loader, classfileBuffer));
+            boolean own = cls == null ? classes.putIfAbsent(className, created) == null : classes.replace(className, cls, created);
+            if (!own)
+                continue;
+            created.woven.run();
+            try {
+                return created.get();
+            }
+            catch (RuntimeException | Error ex) {
+                // Failed class is not instrumented, the next load of it in the loader tries again
+                classes.remove(className, created);
+                throw ex;
+            }
+        }
+    }
 
+    private byte[] weave( String className, ClassLoader loader, byte[] classfileBuffer ) {
         Log.info("Instrumenting class: " + className );//.replace('/','.') );
+        Log.debug("Class loader of " + className + ": " + loader);
+
+        ClassReader reader = new ClassReader(classfileBuffer);
+        LoaderClassWriter writer = new LoaderClassWriter(reader, loader);
+        // Frames are recomputed by the writer, old frames are not read
+        reader.accept(new ClassWeaver(writer, func2profile.get(className), dispatcher.get(className),
+                object2track.contains(className), isAsyncClass(className)), ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
 
-        Set<String> methods2profile = func2profile.get(className);
-        Set<String> methods4dispatcher = dispatcher.get(className);
-
-        // Instrumrnting methods for profiling
-        if (methods2profile != null) {
-            for (String method : methods2profile) {
-                try {
-                    CtMethod[] methods = ctClass.getDeclaredMethods(method);
-                    for ( CtMethod mt : methods) {
-
-                        Log.info("Instrumenting method for profiling: " +  mt.getLongName() );
-
-                        CtClass[] pTypes = mt.getParameterTypes();
-                        int servReqIdx = -1;
-                        for( int i=0; i < pTypes.length; ++i ) {
-                            CtClass type = pTypes[i];
-                            String typeName = type.getName();
-                            Log.debug(mt.getLongName() + " argument " + i + " type: " +  typeName );
-                            if ( "javax.servlet.http.HttpServletRequest".equals(typeName) ) {
-                                servReqIdx = i;
-                                break;
-                            }
-                        }
-
-                        if (servReqIdx<0)
-                            mt.insertBefore( "{ test.kbay.profiler.ProfilerEngine.startProfiling( \"" + mt.getLongName() + "\", null); }" );
-                        else
-                            mt.insertBefore( "{ test.kbay.profiler.ProfilerEngine.startProfiling( \"" + mt.getLongName() + "\", $args["+servReqIdx+"]); }" );
-
-                        mt.insertAfter("{test.kbay.profiler.ProfilerEngine.finishProfiling();}", true); // as final
-                    }
-                }
-                catch (Exception ex) {
-                    Log.error("Failed to instrument method " + className.replace('/','.') + "." + method, ex);
-                }
+    private ConcurrentHashMap<String, WovenClass> getInstrumentedClasses( ClassLoader loader ) {
+        synchronized (instrumentedClasses) {
+            ConcurrentHashMap<String, WovenClass> classes = instrumentedClasses.get(loader);
+            if (classes == null) {
+                classes = new ConcurrentHashMap<>();
+                instrumentedClasses.put(loader, classes);
             }
+            return classes;
         }
+    }
 
-        // Instrumrnting dispatch method. It has to return void and accept two arguments HttpServletRequest & HttpServletResponse
-        if (methods4dispatcher != null) {
-            for (String method : methods4dispatcher) {
-                try {
-                    CtMethod[] methods = ctClass.getDeclaredMethods(method);
-                    for ( CtMethod mt : methods) {
-
-                        Log.info("Instrumenting dispatch method: " +  mt.getLongName() );
-
-                        // Expected void return type for dispatcher
-                        if (! CtClass.voidType.getName().equals(mt.getReturnType().getName() ) ) {
-                            Log.error("Profiler unable to instrument dispatcher because expected return type not found for method " + mt.getLongName() );
-                            continue;
-                        }
-
-
-                        CtClass[] pTypes = mt.getParameterTypes();
-                        int servReqIdx = -1;
-                        int servRespIdx = -1;
-                        for( int i=0; i < pTypes.length; ++i ) {
-                            CtClass type = pTypes[i];
-                            String typeName = type.getName();
-                            Log.debug(mt.getLongName() + " argument " + i + " type: " +  typeName );
-                            if ( "javax.servlet.http.HttpServletRequest".equals(typeName) ) {
-                                servReqIdx = i;
-                            }
-
-                            if ( "javax.servlet.http.HttpServletResponse".equals(typeName) ) {
-                                servRespIdx = i;
-                            }
-                        }
-
-                        if ( servReqIdx<0 || servRespIdx<0 ) {
-                            Log.error("Profiler unable to instrument dispatcher because expected arguments are not found for method " + mt.getLongName() );
-                        }
-                        else {
-                            // Method must return void.
-
-                           /* {
-                                javax.servlet.http.HttpServletRequest request = (javax.servlet.http.HttpServletRequest)$args[servReqIdx];
-                                javax.servlet.http.HttpServletResponse response = (javax.servlet.http.HttpServletResponse)$args[servRespIdx];
-                                if (request!=null && response!=null) {
-                                    StringBuffer url = request.getRequestURL();
-                                    if (url!=null && url.toString().endsWith("profiler")) {
-                                        response.setStatus(200);
-                                        java.io.PrintWriter writer = response.getWriter();
-
-                                        if (test.kbay.profiler.ProfilerEngine.onPrintProfilingResults( writer ))
-                                            return;
-                                    }
-                                }
-                            }*/
-
-                            // have to extract all Data inplace due Java security
-                            mt.insertBefore(
-                             "{\n" +
-                                     "javax.servlet.http.HttpServletRequest request = (javax.servlet.http.HttpServletRequest)$args["+servReqIdx+"];\n" +
-                                     "javax.servlet.http.HttpServletResponse response = (javax.servlet.http.HttpServletResponse)$args["+servRespIdx+"];\n" +
-                                     "if (request!=null && response!=null) {\n" +
-                                     "                                    StringBuffer url = request.getRequestURL();\n" +
-                                     "                                    if (url!=null && url.toString().endsWith(\"profiler\")) {\n" +
-                                     "                                        response.setStatus(200);\n" +
-                                     "                                        java.io.PrintWriter writer = response.getWriter();\n" +
-                                     "\n" +
-                                     "                                        if (test.kbay.profiler.ProfilerEngine.onPrintProfilingResults( writer ))\n" +
-                                     "                                            return;\n" +
-                                     "                                    }\n" +
-                                     "                                }}"
-                            );
-
-
-                            //mt.insertBefore( "{ if (test.kbay.profiler.ProfilerEngine.onDispatcherRequest(  $args["+servReqIdx+"],  $args["+servRespIdx+"] )) return; }" );
-                        }
-
-                    }
-                }
-                catch (Exception ex) {
-                    Log.error("Failed to instrument method " + className.replace('/','.') + "." + method, ex);
-                }
-            }
+    // Agent classes are never instrumented for async calls, wrappers would wrap themselves
+    private boolean isAsyncClass(String className) {
+        if (className == null || className.startsWith("test/kbay/"))
+            return false;
+        for (String pkg : asyncPackages) {
+            if (className.startsWith(pkg))
+                return true;
         }
+        return false;
     }
 
-
-
     private void addMetod4Class(HashMap< String, Set<String> > track, String className, String methodName ) {
         className = className.replace('.', '/'); // Example of calss name from insrument: java/io/FileOutputStream
         need2instrumentClasses.add(className);
@@ -0,0 +1,277 @@
+package test.kbay;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import test.kbay.profiler.ProfilerEngine;
+import test.kbay.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Weaves probes into one class while ClassReader visits it. Probe bytecode is emitted directly, nothing is
+ * compiled, no other class is loaded or parsed. Methods without probes are not visited, ClassWriter copies them.
+ * Frames are computed by the writer, see LoaderClassWriter.
+ *
+ * Probes:
+ *  - func2prof method: startProfiling(id, request or null) at entry, finishProfiling() at every return and
+ *    in a catch-all handler that rethrows.
+ *  - dispatch method: if (onDispatcherRequest(request, response)) return; at entry.
+ *  - tracking object constructor: if (getClass() == <class>.class) processTrackingObject(typeId) after super(...).
+ *  - async: Runnable, Callable and Supplier arguments of executor calls that run a task once are wrapped,
+ *    see isAsyncCall.
+ */
+final class ClassWeaver extends ClassVisitor {
+    static final int ASM_API = Opcodes.ASM9;
+
+    private static final String ENGINE = "test/kbay/profiler/ProfilerEngine";
+    private static final String SERVLET_REQUEST = "Ljavax/servlet/http/HttpServletRequest;";
+    private static final String SERVLET_RESPONSE = "Ljavax/servlet/http/HttpServletResponse;";
+
+    // Task types that are wrapped at executor call sites. Key: descriptor, value: ProfilerEngine wrap method
+    private static final HashMap<String, String> asyncTaskWrappers = new HashMap<>();
+    static {
+        asyncTaskWrappers.put("Ljava/lang/Runnable;", "wrapRunnable");
+        asyncTaskWrappers.put("Ljava/util/concurrent/Callable;", "wrapCallable");
+        asyncTaskWrappers.put("Ljava/util/function/Supplier;", "wrapSupplier");
+        asyncTaskWrappers.put("Ljava/util/Collection;", "wrapCallables"); // invokeAll, invokeAny
+    }
+
+    // java.util.concurrent methods that hand a task off to run once. Other methods with task arguments must
+    // get the task as is: remove(task) looks for the queued task, Executors.callable(task) isn't a hand off,
+    // periodic tasks outlive the call
+    private static final String CONCURRENT = "java/util/concurrent/";
+    private static final String COMPLETABLE_FUTURE = "java/util/concurrent/CompletableFuture";
+    private static final HashSet<String> asyncMethods = new HashSet<>(Arrays.asList(
+            "execute", "submit", "invokeAll", "invokeAny", "schedule"));
+
+    private final Set<String> methods2profile;     // null if none
+    private final Set<String> methods4dispatcher;  // null if none
+    private final boolean     trackObjects;
+    private final boolean     async;
+
+    private String className;   // path notation
+    private String javaName;    // dot notation
+    private int    typeId = -1;
+
+    /**
+     * @param next               - class writer
+     * @param methods2profile    - names of methods to profile, null if none
+     * @param methods4dispatcher - names of dispatch methods, null if none
+     * @param trackObjects       - count objects of the class in constructors
+     * @param async              - wrap tasks at java.util.concurrent call sites
+     */
+    ClassWeaver(ClassVisitor next, Set<String> methods2profile, Set<String> methods4dispatcher, boolean trackObjects, boolean async) {
+        super(ASM_API, next);
+        this.methods2profile = methods2profile;
+        this.methods4dispatcher = methods4dispatcher;
+        this.trackObjects = trackObjects;
+        this.async = async;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.className = name;
+        this.javaName = name.replace('/', '.');
+        if (trackObjects && (access & Opcodes.ACC_INTERFACE) == 0)
+            typeId = ProfilerEngine.registerType(javaName);
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        if (mv == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return mv;
+
+        boolean ctor = "<init>".equals(name);
+        boolean profile = !ctor && methods2profile != null && methods2profile.contains(name);
+        boolean dispatch = !ctor && methods4dispatcher != null && methods4dispatcher.contains(name);
+        boolean track = ctor && typeId >= 0;
+        if (!profile && !dispatch && !track && !async)
+            return mv; // copied as is
+
+        ProbeAdapter probes = new ProbeAdapter(mv, access, name, descriptor);
+        String longName = javaName + "." + name + getParamsString(descriptor);
+        Type[] params = Type.getArgumentTypes(descriptor);
+
+        if (dispatch) {
+            Log.info("Instrumenting dispatch method: " + longName);
+            // Expected void return type and two arguments HttpServletRequest & HttpServletResponse
+            int reqIdx = findParam(params, SERVLET_REQUEST);
+            int respIdx = findParam(params, SERVLET_RESPONSE);
+            if (Type.getReturnType(descriptor) != Type.VOID_TYPE)
+                Log.error("Profiler unable to instrument dispatcher because expected return type not found for method " + longName);
+            else if (reqIdx < 0 || respIdx < 0)
+                Log.error("Profiler unable to instrument dispatcher because expected arguments are not found for method " + longName);
+            else {
+                probes.dispatchReqIdx = reqIdx;
+                probes.dispatchRespIdx = respIdx;
+            }
+        }
+
+        if (profile) {
+            Log.info("Instrumenting method for profiling: " + longName);
+            // Probe refers to the method by id, the name is registered once here
+            probes.methodId = ProfilerEngine.registerMethod(longName);
+            probes.profileReqIdx = findParam(params, SERVLET_REQUEST);
+        }
+
+        if (track)
+            probes.trackedCtor = javaName + getParamsString(descriptor);
+
+        return probes;
+    }
+
+    // Java notation of parameters, same as in method names of the results. Example: (int,java.lang.String[])
+    static String getParamsString(String descriptor) {
+        StringBuilder sb = new StringBuilder("(");
+        Type[] params = Type.getArgumentTypes(descriptor);
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(params[i].getClassName());
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @param owner - owner of the called method, path notation
+     * @param name  - called method
+     * @return true if task arguments of the call are wrapped
+     */
+    static boolean isAsyncCall(String owner, String name) {
+        if (!owner.startsWith(CONCURRENT))
+            return false;
+        if (COMPLETABLE_FUTURE.equals(owner))
+            return name.endsWith("Async");
+        return asyncMethods.contains(name);
+    }
+
+    private static int findParam(Type[] params, String descriptor) {
+        for (int i = 0; i < params.length; i++) {
+            if (descriptor.equals(params[i].getDescriptor()))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Probes of one method. Indexes are argument indexes, -1 if not used.
+     */
+    private final class ProbeAdapter extends AdviceAdapter {
+        int    methodId = -1;
+        int    profileReqIdx = -1;
+        int    dispatchReqIdx = -1;
+        int    dispatchRespIdx = -1;
+        String trackedCtor;     // long name of constructor that counts objects, null if not tracked
+
+        private final Label tryStart = new Label();
+        private String lastOwner; // owner of the last called method, tells super(...) from this(...)
+
+        ProbeAdapter(MethodVisitor mv, int access, String name, String descriptor) {
+            super(ASM_API, mv, access, name, descriptor);
+        }
+
+        // Constructors: right after super(...) or this(...)
+        @Override
+        protected void onMethodEnter() {
+            boolean callsSuper = !className.equals(lastOwner);
+
+            if (dispatchReqIdx >= 0) {
+                Label next = new Label();
+                loadArg(dispatchReqIdx);
+                loadArg(dispatchRespIdx);
+                visitMethodInsn(INVOKESTATIC, ENGINE, "onDispatcherRequest", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+                visitJumpInsn(IFEQ, next);
+                mv.visitInsn(RETURN); // not an exit of the profiled method, profiling isn't started yet
+                visitLabel(next);
+            }
+
+            // Constructor that calls this(...) is skipped, the called constructor counts the object.
+            // Objects of subclasses are not counted, same as allocation hook does.
+            if (trackedCtor != null && callsSuper) {
+                Log.info("Instrumenting constructor for object tracking: " + trackedCtor);
+                Label next = new Label();
+                loadThis();
+                visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;", false);
+                visitLdcInsn(Type.getObjectType(className));
+                visitJumpInsn(IF_ACMPNE, next);
+                push(typeId);
+                visitMethodInsn(INVOKESTATIC, ENGINE, "processTrackingObject", "(I)V", false);
+                visitLabel(next);
+            }
+
+            if (methodId >= 0) {
+                push(methodId);
+                if (profileReqIdx >= 0)
+                    loadArg(profileReqIdx);
+                else
+                    visitInsn(ACONST_NULL);
+                visitMethodInsn(INVOKESTATIC, ENGINE, "startProfiling", "(ILjava/lang/Object;)V", false);
+                visitLabel(tryStart);
+            }
+        }
+
+        // Thrown exceptions are handled by the catch-all handler
+        @Override
+        protected void onMethodExit(int opcode) {
+            if (methodId >= 0 && opcode != ATHROW)
+                visitMethodInsn(INVOKESTATIC, ENGINE, "finishProfiling", "()V", false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (methodId >= 0) {
+                // Last in the exception table, handlers of the method go first
+                Label handler = new Label();
+                visitTryCatchBlock(tryStart, handler, handler, null);
+                visitLabel(handler);
+                visitMethodInsn(INVOKESTATIC, ENGINE, "finishProfiling", "()V", false);
+                visitInsn(ATHROW);
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            lastOwner = owner;
+            if (async && isAsyncCall(owner, name))
+                wrapTasks(owner, name, descriptor);
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        // Arguments are on the stack. Arguments from the first task on are stored to locals and loaded back,
+        // tasks are wrapped on the way. Only descriptors are checked, argument classes are not loaded.
+        private void wrapTasks(String owner, String name, String descriptor) {
+            Type[] params = Type.getArgumentTypes(descriptor);
+            int first = -1;
+            for (int i = 0; i < params.length && first < 0; i++) {
+                if (asyncTaskWrappers.containsKey(params[i].getDescriptor()))
+                    first = i;
+            }
+            if (first < 0)
+                return;
+
+            Log.debug("Wrapping async task for call " + owner.replace('/', '.') + "." + name + " in " + javaName);
+            int[] locals = new int[params.length];
+            for (int i = params.length - 1; i > first; i--) {
+                locals[i] = newLocal(params[i]);
+                storeLocal(locals[i]);
+            }
+            for (int i = first; i < params.length; i++) {
+                if (i > first)
+                    loadLocal(locals[i]);
+                String wrapper = asyncTaskWrappers.get(params[i].getDescriptor());
+                if (wrapper != null)
+                    super.visitMethodInsn(INVOKESTATIC, ENGINE, wrapper, "(" + params[i].getDescriptor() + ")" + params[i].getDescriptor(), false);
+            }
+        }
+    }
+}
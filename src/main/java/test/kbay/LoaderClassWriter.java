@@ -0,0 +1,84 @@
+package test.kbay;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import test.kbay.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Class writer that computes frames without loading classes. Default ClassWriter loads classes to find common
+ * super class of two types, a transformer must not do it: the class may be not loadable yet or loading it runs
+ * transformer again. Super classes are read from class files of the defining loader instead.
+ *
+ * If a class file is not found, common super class is java/lang/Object.
+ */
+final class LoaderClassWriter extends ClassWriter {
+    private static final String OBJECT = "java/lang/Object";
+
+    private final ClassLoader loader;   // null for bootstrap loader
+    // key: type, value: super class, null for interfaces. Per class, frames ask about the same types many times
+    private final HashMap<String, String> superNames = new HashMap<>();
+
+    /**
+     * @param reader - reader of the original class, constant pool and unchanged methods are copied
+     * @param loader - loader that defines the class, null for bootstrap loader
+     */
+    LoaderClassWriter(ClassReader reader, ClassLoader loader) {
+        super(reader, COMPUTE_FRAMES);
+        this.loader = loader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2))
+            return type1;
+        List<String> supers1 = getSuperClasses(type1);
+        if (supers1 == null)
+            return OBJECT;
+        // Walk up from type2 till a class that type1 extends
+        for (String type = type2; type != null; type = getSuperName(type)) {
+            if (supers1.contains(type))
+                return type;
+        }
+        return OBJECT;
+    }
+
+    // Type and its super classes, null for interface
+    private List<String> getSuperClasses(String type) {
+        List<String> res = new ArrayList<>();
+        for (String t = type; t != null; t = getSuperName(t))
+            res.add(t);
+        return res.size() == 1 && !OBJECT.equals(type) ? null : res;
+    }
+
+    // Super class, null for java/lang/Object, interfaces and classes without class file
+    private String getSuperName(String type) {
+        if (OBJECT.equals(type))
+            return null;
+        if (superNames.containsKey(type))
+            return superNames.get(type);
+
+        String res = null;
+        try (InputStream in = loader != null ? loader.getResourceAsStream(type + ".class")
+                : ClassLoader.getSystemResourceAsStream(type + ".class")) {
+            if (in != null) {
+                ClassReader reader = new ClassReader(in);
+                if ((reader.getAccess() & Opcodes.ACC_INTERFACE) == 0)
+                    res = reader.getSuperName();
+            }
+            else
+                Log.debug("Class file is not found for " + type + ", common super class is " + OBJECT);
+        }
+        catch (IOException | RuntimeException ex) {
+            Log.debug("Unable to read class file of " + type + ", common super class is " + OBJECT);
+        }
+        superNames.put(type, res);
+        return res;
+    }
+}
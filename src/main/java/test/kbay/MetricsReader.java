@@ -0,0 +1,188 @@
+package test.kbay;
+
+import test.kbay.util.Fences;
+import test.kbay.util.Time;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static test.kbay.profiler.MetricsFileFormat.*;
+
+/**
+ * Reader of the live metrics file (metricsFile:). File is mapped read only, the profiled process
+ * is not disturbed. Prints method totals and recent calls, with -watch it prints them periodically.
+ *
+ * Usage: java -cp profiler-1.0.jar test.kbay.MetricsReader [-watch <ms>] <file>
+ */
+public class MetricsReader {
+    private static final int MAX_RETRIES = 1000;
+
+    private final MappedByteBuffer file;
+
+    /**
+     * @param fileName - metrics file written by the agent
+     * @throws IOException if the file can't be mapped or it is not a metrics file
+     */
+    public MetricsReader(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        if (file.capacity() < HEADER_SIZE || file.getInt(H_MAGIC) != MAGIC)
+            throw new IOException("Not a metrics file");
+        if (file.getInt(H_VERSION) != VERSION)
+            throw new IOException("Unsupported metrics file version " + file.getInt(H_VERSION));
+    }
+
+    public static void main(String[] args) {
+        long watchMs = 0;
+        String fileName = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-watch".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    watchMs = Long.parseLong(args[++i]);
+                } catch (NumberFormatException ex) {
+                    watchMs = -1;
+                }
+                if (watchMs <= 0) {
+                    printUsage();
+                    System.exit(2);
+                }
+            }
+            else if (fileName == null && !args[i].startsWith("-"))
+                fileName = args[i];
+            else {
+                printUsage();
+                System.exit(2);
+            }
+        }
+        if (fileName == null) {
+            printUsage();
+            System.exit(2);
+        }
+
+        try {
+            MetricsReader reader = new MetricsReader(fileName);
+            do {
+                reader.print(System.out);
+                if (watchMs > 0)
+                    Thread.sleep(watchMs);
+            } while (watchMs > 0);
+        }
+        catch (Exception ex) {
+            System.err.println("Unable to read " + fileName + ". Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -cp profiler-1.0.jar test.kbay.MetricsReader [-watch <ms>] <file>");
+        System.err.println("  Print live metrics file of the profiler with metricsFile:");
+        System.err.println("  -watch <ms> - print metrics again every <ms>");
+    }
+
+    /**
+     * Consistent copy of the file. Copy is retried while the agent updates the file
+     * @return copy, byte order is set
+     * @throws IOException if there is no consistent copy after many retries
+     */
+    public ByteBuffer snapshot() throws IOException, InterruptedException {
+        byte[] bytes = new byte[file.capacity()];
+        for (int i = 0; i < MAX_RETRIES; i++) {
+            long seq1 = file.getLong(H_SEQ);
+            if ((seq1 & 1) == 0) {
+                // Copy must not be read before the first seq
+                Fences.loadFence();
+                ByteBuffer src = file.duplicate();
+                src.clear();
+                src.get(bytes);
+                // and not after the second one
+                Fences.loadFence();
+                if (file.getLong(H_SEQ) == seq1)
+                    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            Thread.sleep(1);
+        }
+        throw new IOException("File is being updated all the time");
+    }
+
+    /**
+     * Print method table and recent calls
+     */
+    public void print(PrintStream out) throws IOException, InterruptedException {
+        ByteBuffer buf = snapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Metrics at ").append(Time.getTimeAsString(buf.getLong(H_UPDATE_TIME))).append('\n');
+
+        int methodsOffset = buf.getInt(H_METHODS_OFFSET);
+        int methodSize = buf.getInt(H_METHOD_SIZE);
+        int count = buf.getInt(H_METHOD_COUNT);
+        sb.append("Latency per method for ").append(count).append(" methods:\n");
+        for (int i = 0; i < count; i++) {
+            int off = methodsOffset + i * methodSize;
+            long calls = buf.getLong(off + M_CALLS);
+            sb.append(getString(buf, off + M_NAME_LEN, off + M_NAME, M_NAME_MAX))
+                    .append(" calls: ").append(calls);
+            if (calls > 0)
+                sb.append(", mean: ").append(Time.getNanosAsMsString(buf.getLong(off + M_TOTAL_NANOS) / calls))
+                        .append(" ms, p50: ").append(Time.getNanosAsMsString(buf.getLong(off + M_P50_NANOS)))
+                        .append(" ms, p90: ").append(Time.getNanosAsMsString(buf.getLong(off + M_P90_NANOS)))
+                        .append(" ms, p99: ").append(Time.getNanosAsMsString(buf.getLong(off + M_P99_NANOS)))
+                        .append(" ms, p99.9: ").append(Time.getNanosAsMsString(buf.getLong(off + M_P999_NANOS)))
+                        .append(" ms, max: ").append(Time.getNanosAsMsString(buf.getLong(off + M_MAX_NANOS)))
+                        .append(" ms, thread objects: ").append(buf.getLong(off + M_THR_OBJS))
+                        .append(", thread memory: ").append(buf.getLong(off + M_THR_MEM)).append(" bytes");
+            sb.append('\n');
+        }
+
+        List<Integer> slots = getRecentCalls(buf);
+        sb.append("Recent ").append(slots.size()).append(" calls:\n");
+        int ringOffset = buf.getInt(H_RING_OFFSET);
+        int ringSize = buf.getInt(H_RING_SIZE);
+        for (int slot : slots) {
+            int off = ringOffset + slot * ringSize;
+            sb.append(Time.getTimeAsString(buf.getLong(off + R_START_TIME))).append(' ')
+                    .append(getString(buf, off + R_NAME_LEN, off + R_NAME, R_NAME_MAX))
+                    .append(" Execution time:").append(Time.getNanosAsMsString(buf.getLong(off + R_DURATION_NANOS))).append(" ms.");
+            long cpu = buf.getLong(off + R_CPU_NANOS);
+            if (cpu >= 0)
+                sb.append(" CPU time: ").append(Time.getNanosAsMsString(cpu)).append(" ms.");
+            sb.append(" In method's thread created tracking objects: ").append(buf.getLong(off + R_THR_OBJS))
+                    .append(", consumed memory: ").append(buf.getLong(off + R_THR_MEM))
+                    .append(" bytes. In all threads created tracking objects: ").append(buf.getLong(off + R_ALL_OBJS))
+                    .append(", consumed memory: ").append(buf.getLong(off + R_ALL_MEM)).append(" bytes.\n");
+        }
+        out.print(sb);
+        out.flush();
+    }
+
+    /**
+     * @return ring slots of the recent calls, oldest first
+     */
+    static List<Integer> getRecentCalls(ByteBuffer buf) {
+        int ringOffset = buf.getInt(H_RING_OFFSET);
+        int ringSize = buf.getInt(H_RING_SIZE);
+        int capacity = buf.getInt(H_RING_CAPACITY);
+        long head = buf.getLong(H_RING_HEAD);
+
+        List<Integer> slots = new ArrayList<>();
+        for (long s = head - 1; s >= 0 && s >= head - capacity; s--) {
+            int slot = (int) (s % capacity);
+            // Slot keeps an older call if the call was skipped by the agent
+            if (buf.getLong(ringOffset + slot * ringSize + R_SEQ) == s)
+                slots.add(slot);
+        }
+        Collections.reverse(slots);
+        return slots;
+    }
+}
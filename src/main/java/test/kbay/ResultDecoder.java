@@ -0,0 +1,263 @@
+package test.kbay;
+
+import test.kbay.profiler.BinaryResultFormat;
+import test.kbay.util.Print;
+import test.kbay.util.Time;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decoder for the binary result file (resultFormat:binary). Prints records as text, CSV or JSON lines.
+ * With -follow it waits for new records like 'tail -f'.
+ *
+ * Usage: java -jar profiler-1.0.jar [-format text|csv|json] [-follow] <file>
+ */
+public class ResultDecoder {
+    private static final int  READ_SIZE = 256 * 1024;
+    private static final long FOLLOW_SLEEP_MS = 500;
+
+    public enum Format { TEXT, CSV, JSON }
+
+    private final Format      format;
+    private final PrintStream out;
+
+    // Session state
+    private final Map<Long, String> methods = new HashMap<>();
+    private long prevStart;
+
+    /**
+     * @param format - output format
+     * @param out    - output stream
+     */
+    public ResultDecoder(Format format, PrintStream out) {
+        this.format = format;
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        Format format = Format.TEXT;
+        boolean follow = false;
+        String fileName = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-format".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    format = Format.valueOf(args[++i].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    printUsage();
+                    System.exit(2);
+                }
+            }
+            else if ("-follow".equals(args[i]))
+                follow = true;
+            else if (fileName == null && !args[i].startsWith("-"))
+                fileName = args[i];
+            else {
+                printUsage();
+                System.exit(2);
+            }
+        }
+        if (fileName == null) {
+            printUsage();
+            System.exit(2);
+        }
+
+        try {
+            new ResultDecoder(format, System.out).decode(fileName, follow);
+        }
+        catch (Exception ex) {
+            System.err.println("Unable to decode " + fileName + ". Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -jar profiler-1.0.jar [-format text|csv|json] [-follow] <file>");
+        System.err.println("  Decode result file of the profiler with resultFormat:binary");
+        System.err.println("  -format text|csv|json - output format. Default is text. JSON is an object per line");
+        System.err.println("  -follow               - wait for new records when end of file is reached");
+    }
+
+    /**
+     * Decode the file
+     * @param fileName - binary result file
+     * @param follow   - wait for new records, never returns
+     * @throws IOException in case of read error or broken file
+     */
+    public void decode(String fileName, boolean follow) throws IOException, InterruptedException {
+        if (format == Format.CSV)
+            out.println("time,name,durationMs,cpuMs,userMs,thrObjs,thrMem,allObjs,allMem,asyncTasks,asyncMs,asyncObjs,asyncMem");
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+            while (true) {
+                int read = channel.read(buf);
+                buf.flip();
+                decodeRecords(buf);
+                buf.compact();
+                if (buf.position() == buf.capacity()) {
+                    // record bigger than the buffer
+                    ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
+                }
+
+                if (read <= 0) {
+                    out.flush();
+                    if (!follow) {
+                        if (buf.position() > 0)
+                            throw new IOException("File ends with incomplete record, " + buf.position() + " bytes");
+                        return;
+                    }
+                    Thread.sleep(FOLLOW_SLEEP_MS);
+                }
+            }
+        }
+    }
+
+    // Decode complete records. Incomplete one at the end stays in the buffer
+    private void decodeRecords(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            try {
+                decodeRecord(buf);
+            }
+            catch (BufferUnderflowException ex) {
+                buf.position(start);
+                return;
+            }
+            catch (IllegalStateException ex) {
+                throw new IOException(ex.getMessage() + " at record offset " + start);
+            }
+        }
+    }
+
+    private void decodeRecord(ByteBuffer buf) throws IOException {
+        byte tag = buf.get();
+        if (tag == BinaryResultFormat.MAGIC[0]) {
+            for (int i = 1; i < BinaryResultFormat.MAGIC.length; i++) {
+                if (buf.get() != BinaryResultFormat.MAGIC[i])
+                    throw new IllegalStateException("Bad session header");
+            }
+            byte version = buf.get();
+            if (version != BinaryResultFormat.VERSION)
+                throw new IOException("Unsupported format version " + version);
+            // New session, ids are not valid anymore
+            prevStart = buf.getLong();
+            methods.clear();
+        }
+        else if (tag == BinaryResultFormat.METHOD) {
+            long id = BinaryResultFormat.getVarLong(buf);
+            methods.put(id, BinaryResultFormat.getString(buf));
+        }
+        else if (tag == BinaryResultFormat.TEXT) {
+            String str = BinaryResultFormat.getString(buf);
+            if (format == Format.TEXT)
+                out.println(str);
+        }
+        else if (tag == BinaryResultFormat.CALL) {
+            decodeCall(buf);
+        }
+        else {
+            throw new IllegalStateException("Unknown record " + tag);
+        }
+    }
+
+    private void decodeCall(ByteBuffer buf) {
+        long id = BinaryResultFormat.getVarLong(buf);
+        int flags = (int) BinaryResultFormat.getVarLong(buf);
+        long start = prevStart + BinaryResultFormat.getSignedVarLong(buf);
+        long duration = BinaryResultFormat.getSignedVarLong(buf);
+        long thrObjs = BinaryResultFormat.getSignedVarLong(buf);
+        long thrMem = BinaryResultFormat.getSignedVarLong(buf);
+        long allObjs = BinaryResultFormat.getSignedVarLong(buf);
+        long allMem = BinaryResultFormat.getSignedVarLong(buf);
+        if ((flags & BinaryResultFormat.FLAG_SAMPLED) != 0) {
+            // Sample counts give error bounds only
+            for (int i = 0; i < 4; i++)
+                BinaryResultFormat.getSignedVarLong(buf);
+        }
+        String url = (flags & BinaryResultFormat.FLAG_URL) != 0 ? BinaryResultFormat.getString(buf) : null;
+        long cpu = (flags & BinaryResultFormat.FLAG_CPU) != 0 ? BinaryResultFormat.getSignedVarLong(buf) : -1;
+        long user = (flags & BinaryResultFormat.FLAG_USER) != 0 ? BinaryResultFormat.getSignedVarLong(buf) : -1;
+        long asyncTasks = 0, asyncNanos = 0, asyncObjs = 0, asyncMem = 0;
+        if ((flags & BinaryResultFormat.FLAG_ASYNC) != 0) {
+            asyncTasks = BinaryResultFormat.getSignedVarLong(buf);
+            asyncNanos = BinaryResultFormat.getSignedVarLong(buf);
+            asyncObjs = BinaryResultFormat.getSignedVarLong(buf);
+            asyncMem = BinaryResultFormat.getSignedVarLong(buf);
+        }
+        // Record is complete, state can be updated
+        prevStart = start;
+
+        String method = methods.get(id);
+        if (method == null)
+            method = "unknown method " + id;
+        String name = url != null ? url : method;
+        String estimate = (flags & BinaryResultFormat.FLAG_SAMPLED) != 0 ? "~" : "";
+
+        switch (format) {
+            case TEXT: {
+                StringBuilder sb = new StringBuilder();
+                sb.append(Time.getTimeAsString(start)).append(' ').append(name)
+                        .append(" Execution time:").append(Time.getNanosAsMsString(duration)).append(" ms.");
+                if (cpu >= 0) {
+                    sb.append(" CPU time: ").append(Time.getNanosAsMsString(cpu)).append(" ms");
+                    if (user >= 0)
+                        sb.append(", user time: ").append(Time.getNanosAsMsString(user)).append(" ms");
+                    sb.append('.');
+                }
+                sb.append(" In method's thread created tracking objects: ").append(estimate).append(thrObjs)
+                        .append(", consumed memory: ").append(estimate).append(thrMem).append(" bytes. ");
+                if (asyncTasks > 0)
+                    sb.append("In ").append(asyncTasks).append(" async tasks time: ").append(Time.getNanosAsMsString(asyncNanos))
+                            .append(" ms, created tracking objects: ").append(estimate).append(asyncObjs)
+                            .append(", consumed memory: ").append(estimate).append(asyncMem).append(" bytes. ");
+                sb.append("In all threads created tracking objects: ").append(estimate).append(allObjs)
+                        .append(", consumed memory: ").append(estimate).append(allMem).append(" bytes.");
+                out.println(sb);
+                break;
+            }
+            case CSV:
+                out.println(Time.getTimeAsString(start) + "," + csv(name) + "," + Time.getNanosAsMsString(duration) + "," +
+                        (cpu >= 0 ? Time.getNanosAsMsString(cpu) : "") + "," + (user >= 0 ? Time.getNanosAsMsString(user) : "") + "," +
+                        thrObjs + "," + thrMem + "," + allObjs + "," + allMem + "," +
+                        asyncTasks + "," + Time.getNanosAsMsString(asyncNanos) + "," + asyncObjs + "," + asyncMem);
+                break;
+            case JSON: {
+                StringBuilder sb = new StringBuilder("{\"time\":").append(start).append(",\"method\":");
+                Print.appendJsonString(sb, method);
+                if (url != null)
+                    Print.appendJsonString(sb.append(",\"url\":"), url);
+                sb.append(",\"durationNs\":").append(duration);
+                if (cpu >= 0)
+                    sb.append(",\"cpuNs\":").append(cpu);
+                if (user >= 0)
+                    sb.append(",\"userNs\":").append(user);
+                sb.append(",\"estimate\":").append(!estimate.isEmpty())
+                        .append(",\"thrObjs\":").append(thrObjs).append(",\"thrMem\":").append(thrMem)
+                        .append(",\"allObjs\":").append(allObjs).append(",\"allMem\":").append(allMem);
+                if (asyncTasks > 0)
+                    sb.append(",\"asyncTasks\":").append(asyncTasks).append(",\"asyncNs\":").append(asyncNanos)
+                            .append(",\"asyncObjs\":").append(asyncObjs).append(",\"asyncMem\":").append(asyncMem);
+                out.println(sb.append('}'));
+                break;
+            }
+        }
+    }
+
+    private static String csv(String str) {
+        if (str.indexOf(',') < 0 && str.indexOf('"') < 0 && str.indexOf('\n') < 0)
+            return str;
+        return '"' + str.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,103 @@
+package test.kbay.profiler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary result file format. File is a sequence of sessions, every agent run appends a session:
+ *
+ *   session  : MAGIC VERSION baseTime(8 bytes) record*
+ *   record   : METHOD id name                        - method dictionary, before the first call of the method
+ *            | CALL   id flags startTime duration thrObjs thrMem allObjs allMem
+ *                     [samples x4] [url] [cpu] [user] [async tasks, nanos, objs, mem]
+ *            | TEXT   string
+ *
+ * Numbers are LEB128 varints, signed values are zigzag encoded. startTime is ms, delta from the previous
+ * call of the session or from baseTime. Durations are ns. Strings are varint length and UTF-8 bytes.
+ * Method ids are valid inside the session only.
+ */
+public final class BinaryResultFormat {
+    public static final byte[] MAGIC = { 'K', 'P', 'R', 'F' };
+    public static final byte   VERSION = 1;
+
+    // Record tags
+    public static final byte METHOD = 1;
+    public static final byte CALL = 2;
+    public static final byte TEXT = 3;
+
+    // CALL flags, optional fields are present in this order
+    public static final int FLAG_SAMPLED = 1;
+    public static final int FLAG_URL = 2;
+    public static final int FLAG_CPU = 4;
+    public static final int FLAG_USER = 8;
+    public static final int FLAG_ASYNC = 16;
+
+    // Longer strings are cut. Record has to fit into the writer buffer
+    static final int MAX_STRING_BYTES = 16 * 1024;
+
+    private BinaryResultFormat() {
+    }
+
+    public static void putVarLong(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    public static void putSignedVarLong(ByteBuffer buf, long v) {
+        putVarLong(buf, (v << 1) ^ (v >> 63));
+    }
+
+    public static void putString(ByteBuffer buf, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        int len = getCutLength(bytes, MAX_STRING_BYTES);
+        putVarLong(buf, len);
+        buf.put(bytes, 0, len);
+    }
+
+    /**
+     * Length of UTF-8 string that is cut to max bytes. Character is not split: if the first byte after
+     * the cut is a continuation byte (10xxxxxx), the cut moves back before the lead byte of the character.
+     * @param bytes - UTF-8 string
+     * @param max   - max length
+     * @return length, not more than max
+     */
+    static int getCutLength(byte[] bytes, int max) {
+        if (bytes.length <= max)
+            return bytes.length;
+        int len = max;
+        while (len > 0 && (bytes[len] & 0xC0) == 0x80)
+            len--;
+        return len;
+    }
+
+    /**
+     * @throws java.nio.BufferUnderflowException if the value is not complete
+     */
+    public static long getVarLong(ByteBuffer buf) {
+        long res = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            res |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return res;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public static long getSignedVarLong(ByteBuffer buf) {
+        long v = getVarLong(buf);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public static String getString(ByteBuffer buf) {
+        int len = (int) getVarLong(buf);
+        if (len < 0 || len > MAX_STRING_BYTES)
+            throw new IllegalStateException("Malformed string length " + len);
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+package test.kbay.profiler;
+
+import test.kbay.util.Time;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Call tree aggregated over all requests. Identical call paths are merged into one node.
+ *
+ * Number of nodes is limited. Calls that don't fit are added to the exclusive values of the parent.
+ * Recursive call, a method that is already on the path, is folded into the node of that method,
+ * so recursion doesn't make the tree deeper.
+ *
+ * Merge is lock free, new node is inserted with CAS. There are no locks, so virtual threads are not pinned.
+ */
+final class CallTree {
+    // Node stats, index in the node array
+    private static final int CALLS = 0;
+    private static final int INCL_NANOS = 1;
+    private static final int EXCL_NANOS = 2;
+    private static final int INCL_MEM = 3;
+    private static final int EXCL_MEM = 4;
+    private static final int STATS = 5;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    static final class Node {
+        final MethodInfo method; // null for the root
+        final Node       parent;
+        private final AtomicLongArray stats = new AtomicLongArray(STATS);
+        // Copy on write, new paths are rare
+        private volatile Node[] children = NO_CHILDREN;
+        private static final AtomicReferenceFieldUpdater<Node, Node[]> childrenUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node[].class, "children");
+
+        private Node(MethodInfo method, Node parent) {
+            this.method = method;
+            this.parent = parent;
+        }
+
+        private static Node findChild(Node[] children, MethodInfo m) {
+            for (Node child : children) {
+                if (child.method == m)
+                    return child;
+            }
+            return null;
+        }
+    }
+
+    private final Node          root = new Node(null, null);
+    private final int           maxNodes;
+    private final AtomicInteger nodes = new AtomicInteger(0);
+    private final AtomicLong    droppedCalls = new AtomicLong(0);
+
+    /**
+     * @param maxNodes - max number of nodes in the tree
+     */
+    CallTree(int maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Merge finished request tree
+     * @param context - root context of the request. It and all linked children must be finished
+     */
+    void add(ProfileContext context) {
+        merge(root, context);
+    }
+
+    private void merge(Node parent, ProfileContext context) {
+        Node node = null;
+        for (Node n = parent; n != root; n = n.parent) {
+            if (n.method == context.method) {
+                node = n;
+                break;
+            }
+        }
+
+        if (node == null) {
+            node = getChild(parent, context.method);
+            if (node == null) {
+                // Out of node limit
+                droppedCalls.incrementAndGet();
+                parent.stats.addAndGet(EXCL_NANOS, context.durationNanos);
+                parent.stats.addAndGet(EXCL_MEM, context.getThreadMem());
+                return;
+            }
+            node.stats.incrementAndGet(CALLS);
+            node.stats.addAndGet(INCL_NANOS, context.durationNanos);
+            node.stats.addAndGet(INCL_MEM, context.getThreadMem());
+        }
+        // else recursive call. Inclusive values are counted by the outer call already
+
+        node.stats.addAndGet(EXCL_NANOS, context.getExclusiveNanos());
+        node.stats.addAndGet(EXCL_MEM, context.getExclusiveMem());
+
+        for (int i = 0; i < context.childCount; i++)
+            merge(node, context.children[i]);
+    }
+
+    // Child node for the method. Null if it is a new one and the tree is full
+    private Node getChild(Node parent, MethodInfo method) {
+        Node[] children = parent.children;
+        Node child = Node.findChild(children, method);
+        if (child != null)
+            return child;
+
+        // Node is reserved first, so the limit holds when threads insert at the same time
+        if (nodes.incrementAndGet() > maxNodes) {
+            nodes.decrementAndGet();
+            return null;
+        }
+        Node node = new Node(method, parent);
+        while (true) {
+            Node[] newChildren = Arrays.copyOf(children, children.length + 1);
+            newChildren[children.length] = node;
+            if (Node.childrenUpdater.compareAndSet(parent, children, newChildren))
+                return node;
+
+            // Another thread changed children. It might insert the same method
+            children = parent.children;
+            child = Node.findChild(children, method);
+            if (child != null) {
+                nodes.decrementAndGet();
+                return child;
+            }
+        }
+    }
+
+    /**
+     * Tree as indented lines, children are sorted by inclusive time.
+     * Time share is relative to the top level node.
+     * @return lines. Header goes first
+     */
+    List<String> getResults() {
+        List<String> res = new ArrayList<>();
+        long requests = 0;
+        for (Node n : root.children)
+            requests += n.stats.get(CALLS);
+        res.add("Call tree for " + requests + " requests:");
+        for (Node n : sorted(root.children))
+            print(n, 0, n.stats.get(INCL_NANOS), res);
+
+        long dropped = droppedCalls.get();
+        if (dropped > 0)
+            res.add("Calls out of the " + maxNodes + " nodes limit, counted as exclusive for the parent: " + dropped);
+        return res;
+    }
+
+    private static void print(Node node, int depth, long topNanos, List<String> res) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            sb.append("  ");
+        long incl = node.stats.get(INCL_NANOS);
+        sb.append(node.method.name)
+                .append(" calls: ").append(node.stats.get(CALLS))
+                .append(", time incl: ").append(Time.getNanosAsMsString(incl))
+                .append(" ms (").append(topNanos > 0 ? incl * 100 / topNanos : 100)
+                .append("%), excl: ").append(Time.getNanosAsMsString(node.stats.get(EXCL_NANOS)))
+                .append(" ms, memory incl: ").append(node.stats.get(INCL_MEM))
+                .append(", excl: ").append(node.stats.get(EXCL_MEM)).append(" bytes");
+        res.add(sb.toString());
+
+        for (Node child : sorted(node.children))
+            print(child, depth + 1, topNanos, res);
+    }
+
+    private static Node[] sorted(Node[] nodes) {
+        Node[] res = nodes.clone();
+        Arrays.sort(res, (a, b) -> Long.compare(b.stats.get(INCL_NANOS), a.stats.get(INCL_NANOS)));
+        return res;
+    }
+}
@@ -0,0 +1,117 @@
+package test.kbay.profiler;
+
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * Task submitted to an executor inside a profiled call. Worker thread is attached to the context
+ * of the call for the task duration, time and allocations of the task are added to the context.
+ *
+ * Wrapper is created per submission and executor runs it once, so the start values are plain fields.
+ * Periodic tasks are not wrapped, they outlive the call.
+ */
+abstract class ContextTask {
+    private final ProfileContext context;
+
+    // Attached thread and its values at start. Thread is null if the task runs not attached
+    private ThreadState    thread;
+    private ProfileContext prevAttached;
+    private long startNanos;
+    private long objs;
+    private long mem;
+    private long objSamples;
+    private long memSamples;
+    private long exactObjs;
+
+    ContextTask(ProfileContext context) {
+        this.context = context;
+    }
+
+    final void attach() {
+        ThreadState thr = ProfilerEngine.getThreadState();
+        // Task runs in the thread of the call, for example with CallerRunsPolicy. It is counted already
+        if (thr.attached == context || thr.contains(context))
+            return;
+
+        thread = thr;
+        prevAttached = thr.attached;
+        thr.attached = context;
+        objs = thr.objs;
+        mem = thr.mem;
+        objSamples = thr.objSamples;
+        memSamples = thr.memSamples;
+        exactObjs = thr.exactObjs;
+        startNanos = System.nanoTime();
+    }
+
+    final void detach() {
+        ThreadState thr = thread;
+        if (thr == null)
+            return;
+        context.addAsync(System.nanoTime() - startNanos, thr.objs - objs, thr.mem - mem,
+                thr.objSamples - objSamples, thr.memSamples - memSamples, thr.exactObjs - exactObjs);
+        thr.attached = prevAttached;
+        thread = null;
+        prevAttached = null;
+    }
+
+    static final class Run extends ContextTask implements Runnable {
+        private final Runnable task;
+
+        Run(ProfileContext context, Runnable task) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            attach();
+            try {
+                task.run();
+            }
+            finally {
+                detach();
+            }
+        }
+    }
+
+    static final class Call<V> extends ContextTask implements Callable<V> {
+        private final Callable<V> task;
+
+        Call(ProfileContext context, Callable<V> task) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public V call() throws Exception {
+            attach();
+            try {
+                return task.call();
+            }
+            finally {
+                detach();
+            }
+        }
+    }
+
+    static final class Supply<T> extends ContextTask implements Supplier<T> {
+        private final Supplier<T> task;
+
+        Supply(ProfileContext context, Supplier<T> task) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public T get() {
+            attach();
+            try {
+                return task.get();
+            }
+            finally {
+                detach();
+            }
+        }
+    }
+}
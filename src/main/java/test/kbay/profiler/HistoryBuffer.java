@@ -0,0 +1,88 @@
+package test.kbay.profiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity lock free ring buffer for profile history. New context overwrites the oldest one.
+ *
+ * Every published context gets a sequence number. Slot for the sequence is seq % capacity.
+ * Readers never block writers: they walk the sequence range and skip slots that are already
+ * overwritten or not written yet.
+ */
+final class HistoryBuffer {
+    private final AtomicReferenceArray<ProfileContext> slots;
+    private final int capacity;
+
+    // Next sequence number to publish
+    private final AtomicLong head = new AtomicLong(0);
+
+    HistoryBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * Publish finished context. O(1)
+     */
+    void publish(ProfileContext context) {
+        long seq = head.getAndIncrement();
+        context.historySeq = seq;
+
+        int idx = (int) (seq % capacity);
+        ProfileContext cur;
+        do {
+            cur = slots.get(idx);
+            // Writer with the sequence one lap ahead was faster. Our context is already outdated.
+            if (cur != null && cur.historySeq > seq)
+                return;
+        } while (!slots.compareAndSet(idx, cur, context));
+    }
+
+    /**
+     * @return sequence number that next context will get
+     */
+    long getHeadSeq() {
+        return head.get();
+    }
+
+    /**
+     * @return sequence number of the oldest context that can be in the buffer
+     */
+    long getFirstSeq() {
+        return Math.max(0, head.get() - capacity);
+    }
+
+    /**
+     * @param seq - sequence number
+     * @return context with sequence or null if it is overwritten or not published yet
+     */
+    ProfileContext get(long seq) {
+        if (seq < 0)
+            return null;
+        ProfileContext context = slots.get((int) (seq % capacity));
+        return context != null && context.historySeq == seq ? context : null;
+    }
+
+    /**
+     * @return contexts from the oldest to the newest
+     */
+    List<ProfileContext> snapshot() {
+        long end = getHeadSeq();
+        long start = Math.max(0, end - capacity);
+        List<ProfileContext> res = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            ProfileContext context = get(seq);
+            if (context != null)
+                res.add(context);
+        }
+        return res;
+    }
+
+    void clear() {
+        for (int i = 0; i < capacity; i++)
+            slots.set(i, null);
+    }
+}
@@ -0,0 +1,122 @@
+package test.kbay.profiler;
+
+import test.kbay.util.Print;
+
+import java.io.PrintWriter;
+
+/**
+ * History as a JSON document for the /profiler?format=json page:
+ *
+ *   {"records":[{"seq":..,"time":..,"method":..,...},...],"next":..,"lost":..}
+ *
+ * Records are written straight from the history buffer, oldest first, there is no copy of the history.
+ * Writer is flushed every few records, so servlet container sends the response in chunks.
+ *
+ * Dashboard polls with since=<next of the previous response> and gets the new calls only. "lost" is
+ * number of calls after 'since' that were overwritten in the history before they were read.
+ */
+final class JsonResults {
+    static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+    static final int FLUSH_RECORDS = 64;
+
+    private JsonResults() {
+    }
+
+    /**
+     * Page parameters
+     */
+    static final class Query {
+        int    limit = Integer.MAX_VALUE;
+        long   since = -1;
+        String method;
+        String error; // null if parameters are valid
+
+        /**
+         * @param limit  - limit parameter or null
+         * @param since  - since parameter or null
+         * @param method - method parameter or null
+         */
+        Query(String limit, String since, String method) {
+            this.method = method;
+            try {
+                if (limit != null)
+                    this.limit = Integer.parseInt(limit);
+                if (since != null)
+                    this.since = Long.parseLong(since);
+                if (this.limit <= 0 || (since != null && this.since < 0))
+                    error = "limit must be positive, since must be not negative";
+            }
+            catch (NumberFormatException ex) {
+                error = "limit and since must be numbers";
+            }
+        }
+
+        void writeError(PrintWriter writer) {
+            writer.println(Print.appendJsonString(new StringBuilder("{\"error\":"), error).append('}'));
+            writer.flush();
+        }
+    }
+
+    /**
+     * @param writer - output
+     * @param history - profile history
+     * @param limit  - max number of records
+     * @param since  - first history seq to return, records are the oldest after it. If negative, records are the newest
+     * @param method - only calls of the method if not null. Example: app2profile.Handlers.firstHandler()
+     */
+    static void write(PrintWriter writer, HistoryBuffer history, int limit, long since, String method) {
+        long end = history.getHeadSeq();
+        long first = history.getFirstSeq();
+        long start;
+        long lost = 0;
+        if (since >= 0) {
+            start = Math.min(Math.max(since, first), end);
+            lost = start - Math.min(since, end);
+        }
+        else {
+            // Newest records: walk back till 'limit' matches
+            start = end;
+            int found = 0;
+            while (start > first && found < limit) {
+                if (matches(history.get(--start), method))
+                    found++;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(512);
+        char[] chars = new char[512];
+        writer.write("{\"records\":[");
+        int count = 0;
+        long seq = start;
+        for (; seq < end && count < limit; seq++) {
+            ProfileContext context = history.get(seq);
+            if (context == null) {
+                // Overwritten by newer calls while the page is written. Not published yet is not lost
+                if (seq < history.getFirstSeq())
+                    lost++;
+                continue;
+            }
+            if (!matches(context, method))
+                continue;
+
+            sb.setLength(0);
+            if (count > 0)
+                sb.append(',');
+            sb.append('\n');
+            context.appendJson(sb);
+            if (chars.length < sb.length())
+                chars = new char[sb.length() * 2];
+            sb.getChars(0, sb.length(), chars, 0);
+            writer.write(chars, 0, sb.length());
+
+            if (++count % FLUSH_RECORDS == 0)
+                writer.flush();
+        }
+        writer.write("\n],\"next\":" + seq + ",\"lost\":" + lost + "}\n");
+        writer.flush();
+    }
+
+    private static boolean matches(ProfileContext context, String method) {
+        return context != null && (method == null || method.equals(context.method.name));
+    }
+}
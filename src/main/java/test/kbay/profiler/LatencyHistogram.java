@@ -0,0 +1,133 @@
+package test.kbay.profiler;
+
+import test.kbay.util.StripedCounter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory log-linear histogram, HdrHistogram style. Every power of 2 range is split into
+ * SUB_BUCKETS linear buckets, so relative error of a value is below 1/SUB_BUCKETS.
+ * Values 0..2*SUB_BUCKETS-1 are exact, values above MAX_VALUE go to the last bucket.
+ *
+ * Record is lock free and doesn't allocate. Snapshot copies bucket counters, writers are not blocked.
+ */
+final class LatencyHistogram {
+    private static final int  SUB_BITS = 6;
+    private static final int  SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int  MAX_BITS = 44;
+    static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int  BUCKETS = (MAX_BITS - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    // Buckets are not striped: 20 KB per histogram is enough. Calls of different latency go to different buckets
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter  sum;
+    private final AtomicLong      max = new AtomicLong(0);
+
+    /**
+     * @param stripes - stripes of the sum counter, see StripedCounter
+     */
+    LatencyHistogram(int stripes) {
+        sum = new StripedCounter(stripes);
+    }
+
+    /**
+     * @param stripe - stripe for the sum counter, see StripedCounter
+     * @param value  - value to record. Negative values are recorded as 0
+     */
+    void record(int stripe, long value) {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(getIndex(Math.min(value, MAX_VALUE)));
+        sum.add(stripe, value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    /**
+     * @return consistent copy of the histogram for reporting
+     */
+    Snapshot getSnapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Histogram copy
+     */
+    static final class Snapshot {
+        final long[] counts;
+        final long   count;
+        final long   sum;
+        final long   max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile - 0..100
+         * @return highest value that is equivalent to the percentile value
+         */
+        long getPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(getHighestValue(i), max);
+            }
+            return max;
+        }
+
+        /**
+         * @param value - upper bound
+         * @return number of recorded values that are less or equal to the value
+         */
+        long getCountAtOrBelow(long value) {
+            if (value >= MAX_VALUE)
+                return count;
+            int idx = getIndex(Math.max(0, value));
+            long res = 0;
+            for (int i = 0; i < idx; i++)
+                res += counts[i];
+            // Bucket with the value is counted only if whole bucket is below the value
+            if (getHighestValue(idx) <= value)
+                res += counts[idx];
+            return res;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKETS * 2)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS * 2)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long) (index - shift * SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,109 @@
+package test.kbay.profiler;
+
+import test.kbay.util.StripedCounter;
+import test.kbay.util.Time;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Profiled method. Methods are registered once during instrumentation and probes refer
+ * to them by id, so nothing is built from the name on a call.
+ */
+final class MethodInfo {
+    // Registry. Key: method name
+    private static final ConcurrentHashMap<String, MethodInfo> byName = new ConcurrentHashMap<>();
+    // Index: method id. Copy on write, registration is rare
+    private static volatile MethodInfo[] byId = new MethodInfo[0];
+
+    // Totals are updated once per call, not per allocation, so a few stripes are enough. Method info lives
+    // as long as the JVM, with default stripes its counters would grow with the number of CPUs
+    private static final int STRIPES = 4;
+
+    final int    id;
+    final String name; // Example: app2test.TestHandlers.handler_0_ok()
+    // Execution time of all calls of the method, ns. Memory doesn't grow with number of calls
+    final LatencyHistogram latency = new LatencyHistogram(STRIPES);
+    // Totals of all calls. Objects and memory are in the method's thread and in all threads
+    final StripedCounter calls = new StripedCounter(STRIPES);
+    final StripedCounter thrObjs = new StripedCounter(STRIPES);
+    final StripedCounter thrMem = new StripedCounter(STRIPES);
+    final StripedCounter allObjs = new StripedCounter(STRIPES);
+    final StripedCounter allMem = new StripedCounter(STRIPES);
+
+    private MethodInfo(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Register method if it is not registered yet
+     * @param name - method name
+     * @return method info
+     */
+    static MethodInfo register(String name) {
+        MethodInfo method = byName.get(name);
+        if (method != null)
+            return method;
+
+        synchronized (byName) {
+            method = byName.get(name);
+            if (method == null) {
+                MethodInfo[] methods = byId;
+                method = new MethodInfo(methods.length, name.replace('/', '.'));
+                methods = Arrays.copyOf(methods, methods.length + 1);
+                methods[method.id] = method;
+                byId = methods;
+                byName.put(name, method);
+            }
+        }
+        return method;
+    }
+
+    /**
+     * @param id - method id
+     * @return method info or null if id is unknown
+     */
+    static MethodInfo get(int id) {
+        MethodInfo[] methods = byId;
+        if (id < 0 || id >= methods.length)
+            return null;
+        return methods[id];
+    }
+
+    /**
+     * Add finished call to the method totals
+     * @param stripe  - stripe of the thread
+     * @param context - finished context
+     */
+    void onFinish(int stripe, ProfileContext context) {
+        latency.record(stripe, context.durationNanos);
+        calls.add(stripe, 1);
+        thrObjs.add(stripe, context.getThreadObjs());
+        thrMem.add(stripe, context.getThreadMem());
+        allObjs.add(stripe, context.getAllObjs());
+        allMem.add(stripe, context.getAllMem());
+    }
+
+    /**
+     * @return all registered methods, in registration order
+     */
+    static MethodInfo[] getAll() {
+        return byId;
+    }
+
+    /**
+     * @return latency summary or null if method wasn't called yet
+     */
+    String getLatencyStr() {
+        LatencyHistogram.Snapshot snap = latency.getSnapshot();
+        if (snap.count == 0)
+            return null;
+        return name + " calls: " + snap.count + ", mean: " + Time.getNanosAsMsString(snap.getMean()) +
+                " ms, p50: " + Time.getNanosAsMsString(snap.getPercentile(50)) +
+                " ms, p90: " + Time.getNanosAsMsString(snap.getPercentile(90)) +
+                " ms, p99: " + Time.getNanosAsMsString(snap.getPercentile(99)) +
+                " ms, p99.9: " + Time.getNanosAsMsString(snap.getPercentile(99.9)) +
+                " ms, max: " + Time.getNanosAsMsString(snap.max) + " ms";
+    }
+}
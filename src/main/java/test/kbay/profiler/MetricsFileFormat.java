@@ -0,0 +1,84 @@
+package test.kbay.profiler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the live metrics file (metricsFile:). File is memory mapped by the agent and rewritten
+ * by the publisher thread. Byte order is little endian, offsets are in bytes.
+ *
+ *   header  : HEADER_SIZE bytes at 0
+ *   methods : methodCapacity records of METHOD_SIZE at methodsOffset. Index is the method id
+ *   ring    : ringCapacity records of RING_SIZE at ringOffset. Recent calls, slot is seq % ringCapacity
+ *
+ * Consistency is a seqlock. Writer makes H_SEQ odd, updates the data and makes H_SEQ even again.
+ * Reader reads H_SEQ, copies the data, reads H_SEQ again. Copy is consistent if both values are
+ * the same and even, otherwise the reader retries. Mapped memory has no volatile access in Java 8,
+ * writer puts store fences after the odd and before the even H_SEQ, reader puts load fences after
+ * the first and before the second read.
+ *
+ * Strings are UTF-8, length is in bytes and longer strings are cut.
+ */
+public final class MetricsFileFormat {
+    public static final int MAGIC = 0x464D504B; // "KPMF"
+    public static final int VERSION = 1;
+
+    // Header
+    public static final int HEADER_SIZE = 64;
+    public static final int H_MAGIC = 0;            // int
+    public static final int H_VERSION = 4;          // int
+    public static final int H_SEQ = 8;              // long, seqlock
+    public static final int H_UPDATE_TIME = 16;     // long, ms of the last update
+    public static final int H_METHOD_COUNT = 24;    // int, number of used method records
+    public static final int H_METHOD_CAPACITY = 28; // int
+    public static final int H_METHODS_OFFSET = 32;  // int
+    public static final int H_METHOD_SIZE = 36;     // int
+    public static final int H_RING_OFFSET = 40;     // int
+    public static final int H_RING_CAPACITY = 44;   // int
+    public static final int H_RING_SIZE = 48;       // int
+    public static final int H_RING_HEAD = 56;       // long, seq the next call will get
+
+    // Method record. Totals of all calls since the start
+    public static final int METHOD_SIZE = 256;
+    public static final int M_NAME_LEN = 0;         // int
+    public static final int M_NAME = 4;             // bytes
+    public static final int M_NAME_MAX = 164;
+    public static final int M_CALLS = 168;          // long
+    public static final int M_TOTAL_NANOS = 176;    // long
+    public static final int M_MAX_NANOS = 184;      // long
+    public static final int M_P50_NANOS = 192;      // long
+    public static final int M_P90_NANOS = 200;      // long
+    public static final int M_P99_NANOS = 208;      // long
+    public static final int M_P999_NANOS = 216;     // long
+    public static final int M_THR_OBJS = 224;       // long, tracking objects in the method's thread
+    public static final int M_THR_MEM = 232;        // long, bytes in the method's thread
+
+    // Recent call record
+    public static final int RING_SIZE = 192;
+    public static final int R_SEQ = 0;              // long, -1 for empty slot
+    public static final int R_START_TIME = 8;       // long, ms
+    public static final int R_DURATION_NANOS = 16;  // long
+    public static final int R_CPU_NANOS = 24;       // long, -1 if not measured
+    public static final int R_THR_OBJS = 32;        // long
+    public static final int R_THR_MEM = 40;         // long
+    public static final int R_ALL_OBJS = 48;        // long
+    public static final int R_ALL_MEM = 56;         // long
+    public static final int R_METHOD_ID = 64;       // int
+    public static final int R_NAME_LEN = 68;        // int, name is URL or method name
+    public static final int R_NAME = 72;            // bytes
+    public static final int R_NAME_MAX = 120;
+
+    private MetricsFileFormat() {
+    }
+
+    /**
+     * @return string at the offset, length goes first
+     */
+    public static String getString(ByteBuffer buf, int lenOffset, int offset, int max) {
+        int len = Math.max(0, Math.min(buf.getInt(lenOffset), max));
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++)
+            bytes[i] = buf.get(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+package test.kbay.profiler;
+
+import test.kbay.util.Fences;
+import test.kbay.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static test.kbay.profiler.MetricsFileFormat.*;
+
+/**
+ * Publisher of the live metrics file, see MetricsFileFormat for the layout. Background thread copies
+ * method totals and recent calls into the memory mapped file. Request threads are not involved and
+ * update is plain memory writes, there are no system calls.
+ */
+final class MetricsPublisher implements Runnable {
+    // Methods with bigger ids are not published
+    static final int MAX_METHODS = 1024;
+
+    private final MappedByteBuffer buf;
+    private final int  ringCapacity;
+    private final long intervalMs;
+
+    // Writer thread state: calls of every method at the last update and last published history seq
+    private final long[] publishedCalls = new long[MAX_METHODS];
+    private long nextRingSeq = 0;
+    private HistoryBuffer history;
+    private long seq = 0;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Create the file and start the publisher thread
+     * @param fileName     - metrics file. It is truncated
+     * @param ringCapacity - number of recent calls in the file
+     * @param intervalMs   - update interval
+     * @throws IOException if file can't be created
+     */
+    MetricsPublisher(String fileName, int ringCapacity, long intervalMs) throws IOException {
+        this.ringCapacity = Math.max(1, ringCapacity);
+        this.intervalMs = Math.max(1, intervalMs);
+
+        int methodsOffset = HEADER_SIZE;
+        int ringOffset = methodsOffset + MAX_METHODS * METHOD_SIZE;
+        int size = ringOffset + this.ringCapacity * RING_SIZE;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Mapping stays valid after the channel is closed
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInt(H_VERSION, VERSION);
+        buf.putLong(H_SEQ, seq);
+        buf.putInt(H_METHOD_CAPACITY, MAX_METHODS);
+        buf.putInt(H_METHODS_OFFSET, methodsOffset);
+        buf.putInt(H_METHOD_SIZE, METHOD_SIZE);
+        buf.putInt(H_RING_OFFSET, ringOffset);
+        buf.putInt(H_RING_CAPACITY, this.ringCapacity);
+        buf.putInt(H_RING_SIZE, RING_SIZE);
+        for (int i = 0; i < this.ringCapacity; i++)
+            buf.putLong(ringOffset + i * RING_SIZE + R_SEQ, -1);
+        // Magic is the last, file is valid from here
+        Fences.storeFence();
+        buf.putInt(H_MAGIC, MAGIC);
+
+        thread = new Thread(this, "profiler-metrics-publisher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the publisher. Metrics are updated the last time
+     */
+    void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(intervalMs + 1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                publish();
+                Thread.sleep(intervalMs);
+            }
+            catch (InterruptedException ex) {
+                // Keep going, stop is controlled by running flag
+            }
+            catch (Throwable ex) {
+                Log.error("Metrics publisher failed to update metrics file", ex);
+            }
+        }
+
+        try {
+            publish();
+        }
+        catch (Throwable ex) {
+            Log.error("Metrics publisher failed to update metrics file", ex);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private void publish() {
+        buf.putLong(H_SEQ, ++seq); // odd: update is in progress
+        // Data stores must not be visible before the odd seq
+        Fences.storeFence();
+
+        MethodInfo[] methods = MethodInfo.getAll();
+        int count = Math.min(methods.length, MAX_METHODS);
+        int methodsOffset = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            MethodInfo method = methods[i];
+            int off = methodsOffset + i * METHOD_SIZE;
+            long calls = method.calls.sum();
+            // Histogram snapshot is not cheap, unchanged method is skipped
+            boolean named = buf.getInt(off + M_NAME_LEN) != 0;
+            if (calls == publishedCalls[i] && named)
+                continue;
+            publishedCalls[i] = calls;
+
+            if (!named)
+                putString(off + M_NAME_LEN, off + M_NAME, M_NAME_MAX, method.name);
+
+            LatencyHistogram.Snapshot snap = method.latency.getSnapshot();
+            buf.putLong(off + M_CALLS, calls);
+            buf.putLong(off + M_TOTAL_NANOS, snap.sum);
+            buf.putLong(off + M_MAX_NANOS, snap.max);
+            buf.putLong(off + M_P50_NANOS, snap.getPercentile(50));
+            buf.putLong(off + M_P90_NANOS, snap.getPercentile(90));
+            buf.putLong(off + M_P99_NANOS, snap.getPercentile(99));
+            buf.putLong(off + M_P999_NANOS, snap.getPercentile(99.9));
+            buf.putLong(off + M_THR_OBJS, method.thrObjs.sum());
+            buf.putLong(off + M_THR_MEM, method.thrMem.sum());
+        }
+        buf.putInt(H_METHOD_COUNT, count);
+
+        publishRing();
+
+        buf.putLong(H_UPDATE_TIME, System.currentTimeMillis());
+        // Data stores must be visible before the even seq
+        Fences.storeFence();
+        buf.putLong(H_SEQ, ++seq); // even: consistent
+    }
+
+    // New calls from the history
+    private void publishRing() {
+        HistoryBuffer hist = ProfilerEngine.getHistory();
+        if (hist != history) {
+            // Engine is reset, sequence starts from 0 again
+            history = hist;
+            nextRingSeq = 0;
+        }
+
+        long end = hist.getHeadSeq();
+        long start = Math.max(nextRingSeq, Math.max(hist.getFirstSeq(), end - ringCapacity));
+        int ringOffset = HEADER_SIZE + MAX_METHODS * METHOD_SIZE;
+        for (long s = start; s < end; s++) {
+            ProfileContext context = hist.get(s);
+            if (context == null)
+                continue; // overwritten or not published yet
+
+            int off = ringOffset + (int) (s % ringCapacity) * RING_SIZE;
+            buf.putLong(off + R_SEQ, s);
+            buf.putLong(off + R_START_TIME, context.startTime);
+            buf.putLong(off + R_DURATION_NANOS, context.durationNanos);
+            buf.putLong(off + R_CPU_NANOS, context.cpuNanos);
+            buf.putLong(off + R_THR_OBJS, context.getThreadObjs());
+            buf.putLong(off + R_THR_MEM, context.getThreadMem());
+            buf.putLong(off + R_ALL_OBJS, context.getAllObjs());
+            buf.putLong(off + R_ALL_MEM, context.getAllMem());
+            buf.putInt(off + R_METHOD_ID, context.method.id);
+            putString(off + R_NAME_LEN, off + R_NAME, R_NAME_MAX, context.getName(true));
+        }
+        nextRingSeq = end;
+        buf.putLong(H_RING_HEAD, end);
+    }
+
+    private void putString(int lenOffset, int offset, int max, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        int len = BinaryResultFormat.getCutLength(bytes, max);
+        for (int i = 0; i < len; i++)
+            buf.put(offset + i, bytes[i]);
+        buf.putInt(lenOffset, len);
+    }
+}
@@ -0,0 +1,140 @@
+package test.kbay.profiler;
+
+import test.kbay.util.StripedCounter;
+
+import java.io.PrintWriter;
+
+/**
+ * Method totals in OpenMetrics text format for Prometheus. Everything comes from per method counters
+ * and latency histograms, the history is not read. Cost is O(number of methods).
+ * With overhead:true totals of the agent hooks are added.
+ *
+ * Latency buckets are cumulative counts at fixed bounds. Histogram bucket is counted under a bound
+ * only if it is below the bound entirely, so the counts can be a bit lower than exact ones.
+ */
+final class OpenMetrics {
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    // Latency bucket bounds, seconds and ns
+    private static final String[] BOUNDS = { "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01",
+            "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30", "60" };
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+    static {
+        for (int i = 0; i < BOUNDS.length; i++)
+            BOUND_NANOS[i] = Math.round(Double.parseDouble(BOUNDS[i]) * 1e9);
+    }
+
+    private OpenMetrics() {
+    }
+
+    /**
+     * Write metrics of all called methods
+     * @param writer - output
+     */
+    static void write(PrintWriter writer) {
+        MethodInfo[] methods = MethodInfo.getAll();
+        StringBuilder sb = new StringBuilder(4096);
+
+        sb.append("# TYPE profiler_method_latency_seconds histogram\n")
+                .append("# UNIT profiler_method_latency_seconds seconds\n")
+                .append("# HELP profiler_method_latency_seconds Execution time of profiled method calls.\n");
+        long[] calls = new long[methods.length];
+        for (int m = 0; m < methods.length; m++) {
+            MethodInfo method = methods[m];
+            LatencyHistogram.Snapshot snap = method.latency.getSnapshot();
+            calls[m] = snap.count;
+            if (snap.count == 0)
+                continue;
+            String label = getLabel(method);
+            for (int i = 0; i < BOUNDS.length; i++)
+                sb.append("profiler_method_latency_seconds_bucket{").append(label).append(",le=\"").append(BOUNDS[i])
+                        .append("\"} ").append(snap.getCountAtOrBelow(BOUND_NANOS[i])).append('\n');
+            sb.append("profiler_method_latency_seconds_bucket{").append(label).append(",le=\"+Inf\"} ").append(snap.count).append('\n');
+            sb.append("profiler_method_latency_seconds_count{").append(label).append("} ").append(snap.count).append('\n');
+            sb.append("profiler_method_latency_seconds_sum{").append(label).append("} ").append(snap.sum / 1e9).append('\n');
+            flush(writer, sb);
+        }
+
+        appendCounter(writer, sb, methods, calls, "profiler_method_calls", null,
+                "Calls of profiled method.", Counter.CALLS);
+        appendCounter(writer, sb, methods, calls, "profiler_method_thread_objects", null,
+                "Tracking objects created in the thread of the method.", Counter.THR_OBJS);
+        appendCounter(writer, sb, methods, calls, "profiler_method_thread_allocated_bytes", "bytes",
+                "Memory allocated in the thread of the method.", Counter.THR_MEM);
+        appendCounter(writer, sb, methods, calls, "profiler_method_all_threads_objects", null,
+                "Tracking objects created in all threads while the method ran.", Counter.ALL_OBJS);
+        appendCounter(writer, sb, methods, calls, "profiler_method_all_threads_allocated_bytes", "bytes",
+                "Memory allocated in all threads while the method ran.", Counter.ALL_MEM);
+
+        Overhead ovh = ProfilerEngine.getOverhead();
+        if (ovh != null) {
+            appendOverhead(sb, ovh.calls, "profiler_agent_hook_calls", null, "Calls of the agent hooks.", 1);
+            appendOverhead(sb, ovh.nanos, "profiler_agent_hook_seconds", "seconds", "Time spent in the agent hooks.", 1e9);
+            appendOverhead(sb, ovh.bytes, "profiler_agent_hook_allocated_bytes", "bytes", "Memory allocated in the agent hooks.", 1);
+        }
+
+        sb.append("# EOF\n");
+        flush(writer, sb);
+        writer.flush();
+    }
+
+    private enum Counter { CALLS, THR_OBJS, THR_MEM, ALL_OBJS, ALL_MEM }
+
+    private static void appendCounter(PrintWriter writer, StringBuilder sb, MethodInfo[] methods, long[] calls,
+                                      String name, String unit, String help, Counter counter) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        if (unit != null)
+            sb.append("# UNIT ").append(name).append(' ').append(unit).append('\n');
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        for (int m = 0; m < methods.length; m++) {
+            if (calls[m] == 0)
+                continue;
+            MethodInfo method = methods[m];
+            long value;
+            switch (counter) {
+                case CALLS:    value = method.calls.sum(); break;
+                case THR_OBJS: value = method.thrObjs.sum(); break;
+                case THR_MEM:  value = method.thrMem.sum(); break;
+                case ALL_OBJS: value = method.allObjs.sum(); break;
+                default:       value = method.allMem.sum(); break;
+            }
+            sb.append(name).append("_total{").append(getLabel(method)).append("} ").append(value).append('\n');
+        }
+        flush(writer, sb);
+    }
+
+    private static void appendOverhead(StringBuilder sb, StripedCounter[] counters, String name, String unit, String help, double scale) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        if (unit != null)
+            sb.append("# UNIT ").append(name).append(' ').append(unit).append('\n');
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        for (int i = 0; i < Overhead.HOOK_NAMES.length; i++) {
+            sb.append(name).append("_total{hook=\"").append(Overhead.HOOK_NAMES[i]).append("\"} ");
+            if (scale == 1)
+                sb.append(counters[i].sum());
+            else
+                sb.append(counters[i].sum() / scale);
+            sb.append('\n');
+        }
+    }
+
+    // method="name" with escaped value
+    private static String getLabel(MethodInfo method) {
+        StringBuilder sb = new StringBuilder(method.name.length() + 10).append("method=\"");
+        for (int i = 0; i < method.name.length(); i++) {
+            char c = method.name.charAt(i);
+            if (c == '\\' || c == '"')
+                sb.append('\\').append(c);
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void flush(PrintWriter writer, StringBuilder sb) {
+        writer.write(sb.toString());
+        sb.setLength(0);
+    }
+}
@@ -0,0 +1,127 @@
+package test.kbay.profiler;
+
+import test.kbay.util.Log;
+import test.kbay.util.StripedCounter;
+import test.kbay.util.Time;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time and memory spent inside the agent hooks (overhead:true). Hook adds them to its thread, so a
+ * context gets the overhead of the hooks that ran in its thread during the call, and to the totals
+ * per hook.
+ *
+ * Memory is the thread allocated bytes counter of the JVM. It is 0 if the JVM doesn't have it.
+ * Measurement itself is two nanoTime and two allocated bytes reads per hook, it is a part of the overhead.
+ */
+final class Overhead {
+    static final int START = 0;
+    static final int FINISH = 1;
+    static final int ALLOCATION = 2;
+    static final int TRACKING_OBJECT = 3;
+    static final int MEMORY_USAGE = 4;
+    static final int DISPATCHER = 5;
+    static final String[] HOOK_NAMES = { "startProfiling", "finishProfiling", "allocation", "trackingObject",
+            "memoryUsage", "dispatcher" };
+
+    // Totals per hook
+    final StripedCounter[] calls = new StripedCounter[HOOK_NAMES.length];
+    final StripedCounter[] nanos = new StripedCounter[HOOK_NAMES.length];
+    final StripedCounter[] bytes = new StripedCounter[HOOK_NAMES.length];
+
+    // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), bound to the bean. Null if not supported
+    private final MethodHandle allocatedBytes;
+
+    Overhead() {
+        for (int i = 0; i < HOOK_NAMES.length; i++) {
+            calls[i] = new StripedCounter();
+            nanos[i] = new StripedCounter();
+            bytes[i] = new StripedCounter();
+        }
+        allocatedBytes = findAllocatedBytes();
+    }
+
+    /**
+     * @return allocated bytes of the current thread, 0 if not supported
+     */
+    long getThreadBytes() {
+        MethodHandle handle = allocatedBytes;
+        if (handle == null)
+            return 0;
+        try {
+            return (long) handle.invokeExact(Thread.currentThread().getId());
+        }
+        catch (Throwable ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Hook is done
+     * @param hook       - hook, START, FINISH, ...
+     * @param thr        - state of the current thread
+     * @param startNanos - nanoTime at hook start
+     * @param startBytes - getThreadBytes at hook start
+     */
+    void add(int hook, ThreadState thr, long startNanos, long startBytes) {
+        long mem = getThreadBytes() - startBytes;
+        long time = System.nanoTime() - startNanos;
+        thr.overheadNanos += time;
+        thr.overheadBytes += mem;
+        calls[hook].add(thr.stripe, 1);
+        nanos[hook].add(thr.stripe, time);
+        bytes[hook].add(thr.stripe, mem);
+    }
+
+    /**
+     * Hook that doesn't allocate is done. Memory isn't read, it is 0 anyway
+     * @param hook       - hook, START, FINISH, ...
+     * @param thr        - state of the current thread
+     * @param startNanos - nanoTime at hook start
+     */
+    void add(int hook, ThreadState thr, long startNanos) {
+        long time = System.nanoTime() - startNanos;
+        thr.overheadNanos += time;
+        calls[hook].add(thr.stripe, 1);
+        nanos[hook].add(thr.stripe, time);
+    }
+
+    /**
+     * @return header and a line per called hook
+     */
+    List<String> getResults() {
+        List<String> res = new ArrayList<>();
+        res.add("Agent overhead per hook:");
+        for (int i = 0; i < HOOK_NAMES.length; i++) {
+            long n = calls[i].sum();
+            if (n == 0)
+                continue;
+            long time = nanos[i].sum();
+            res.add(HOOK_NAMES[i] + " calls: " + n + ", time: " + Time.getNanosAsMsString(time) + " ms, mean: " +
+                    time / n + " ns, memory: " + bytes[i].sum() + " bytes");
+        }
+        return res;
+    }
+
+    private static MethodHandle findAllocatedBytes() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(bean))
+                return null;
+            MethodHandle handle = MethodHandles.publicLookup().findVirtual(type, "getThreadAllocatedBytes",
+                    MethodType.methodType(long.class, long.class));
+            type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(bean, true);
+            return handle.bindTo(bean);
+        }
+        catch (Throwable ex) {
+            Log.warn("Thread allocated bytes are not supported by JVM, agent overhead is time only", ex);
+            return null;
+        }
+    }
+}
@@ -1,72 +1,288 @@
 package test.kbay.profiler;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import test.kbay.AgentConfig;
+import test.kbay.util.Print;
+import test.kbay.util.Time;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * ProfileContext represents single function call that we need to profile.
  */
 class ProfileContext {
-    final String contextName; // name for further reference
+    // Raw data for the name. Name is built when results are rendered, not during profiling.
+    final MethodInfo method;
+    final Object     url; // request URL if profiled method has a request. Usually StringBuffer
+
+    final long   startTime;    // wall clock, ms. Used for the name only
+    private final long startNanos;
+    long         durationNanos; // valid after finish. Based on System.nanoTime, so clock adjustments don't affect it
+
+    // CPU and user time of the thread, ns. -1 if not measured
+    private final int  cpuTime;
+    private final long cpuStart;
+    private final long userStart;
+    long         cpuNanos = -1;
+    long         userNanos = -1;
+
+    long         historySeq = -1; // sequence number in the history
+
+    // Agent overhead in the method's thread during the call. -1 if it is not measured
+    private final long overheadNanosStart;
+    private final long overheadBytesStart;
+    long         overheadNanos = -1;
+    long         overheadBytes = -1;
 
-    final int    threadHash; // hash code for thread context was created for.
+    // Call tree of the request. Children are linked in call tree mode only.
+    // Number of linked contexts per request is limited, the rest are counted as exclusive for the parent
+    static final int MAX_TREE_SIZE = 256;
+    ProfileContext   parent;
+    private ProfileContext root = this;
+    private int      treeSize = 1; // root only
+    ProfileContext[] children;
+    int              childCount;
+    private int      unlinkedChildren;
 
-    final long   startTime;
-    long         finishTime;
+    // Tasks the call submitted to executors, added by worker threads. Created when the first task is submitted
+    private static final int ASYNC_TASKS = 0;
+    private static final int ASYNC_NANOS = 1;
+    private static final int ASYNC_OBJS = 2;
+    private static final int ASYNC_MEM = 3;
+    private static final int ASYNC_OBJ_SAMPLES = 4;
+    private static final int ASYNC_MEM_SAMPLES = 5;
+    private static final int ASYNC_EXACT_OBJS = 6;
+    private static final int ASYNC_STATS = 7;
+    private static final AtomicReferenceFieldUpdater<ProfileContext, AtomicLongArray> asyncUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(ProfileContext.class, AtomicLongArray.class, "async");
+    private volatile AtomicLongArray async;
 
-    // Counters for tracking Classes and Total Memory consumed by objects
-    private final AtomicInteger thrObjs = new AtomicInteger(0);
-    private final AtomicLong    thrMem      = new AtomicLong(0);
-    private final AtomicInteger allObjs = new AtomicInteger(0);
-    private final AtomicLong    allMem     = new AtomicLong(0);
+    // Allocations per type in the thread. Null if per type tracking is off
+    final TypeHistogram types;
+    private final int   topTypes;
+
+    // Thread accumulator and counter values at the start. Results are the difference at finish.
+    private final ThreadState thread;
+    private final long thrObjsStart;
+    private final long thrMemStart;
+    private final long allObjsStart;
+    private final long allMemStart;
+
+    // Allocation sampling mode: values are estimates. Number of samples gives the error bounds.
+    // Objects counted by constructors are exact, they are kept apart from the samples.
+    private final boolean sampled;
+    private final long thrObjSamplesStart;
+    private final long thrMemSamplesStart;
+    private final long allObjSamplesStart;
+    private final long allMemSamplesStart;
+    private final long thrExactObjsStart;
+    private final long allExactObjsStart;
+
+    // Counters for tracking Classes and Total Memory consumed by objects. Valid after finish.
+    private long thrObjs;
+    private long thrMem;
+    private long allObjs;
+    private long allMem;
+
+    private long thrObjSamples;
+    private long thrMemSamples;
+    private long allObjSamples;
+    private long allMemSamples;
+    private long thrExactObjs;
+    private long allExactObjs;
 
     /**
      * Create context for current thread
+     * @param method  - profiled method
+     * @param url     - optional request URL
+     * @param thread  - accumulator of current thread
+     * @param sampled - allocation sampling mode
+     * @param topTypes - number of top allocated types to report. 0 - no per type tracking
+     * @param cpuTime - AgentConfig.CPU_TIME_* mode. ProfilerEngine.threadMXBean must be set if it isn't off
+     * @param overhead - report agent overhead of the call
      */
-    ProfileContext(String contextName) {
-        this.contextName = contextName;
-        this.threadHash = Thread.currentThread().hashCode();
+    ProfileContext(MethodInfo method, Object url, ThreadState thread, boolean sampled, int topTypes, int cpuTime, boolean overhead) {
+        this.method = method;
+        this.url = url;
+        this.thread = thread;
+        thrObjsStart = thread.objs;
+        thrMemStart = thread.mem;
+        long[] all = thread.allCounters;
+        ProfilerEngine.allCounters.sum(all);
+        allObjsStart = all[ProfilerEngine.ALL_OBJS];
+        allMemStart = all[ProfilerEngine.ALL_MEM];
+
+        this.topTypes = topTypes;
+        types = topTypes > 0 ? new TypeHistogram() : null;
+
+        this.sampled = sampled;
+        if (sampled) {
+            thrObjSamplesStart = thread.objSamples;
+            thrMemSamplesStart = thread.memSamples;
+            allObjSamplesStart = all[ProfilerEngine.ALL_OBJ_SAMPLES];
+            allMemSamplesStart = all[ProfilerEngine.ALL_MEM_SAMPLES];
+            thrExactObjsStart = thread.exactObjs;
+            allExactObjsStart = all[ProfilerEngine.ALL_EXACT_OBJS];
+        }
+        else {
+            thrObjSamplesStart = thrMemSamplesStart = allObjSamplesStart = allMemSamplesStart = 0;
+            thrExactObjsStart = allExactObjsStart = 0;
+        }
+
+        overheadNanosStart = overhead ? thread.overheadNanos : -1;
+        overheadBytesStart = thread.overheadBytes;
+
+        this.cpuTime = cpuTime;
+        // Clocks are read last, so the snapshots above are not counted
+        cpuStart = cpuTime != AgentConfig.CPU_TIME_OFF ? ProfilerEngine.threadMXBean.getCurrentThreadCpuTime() : 0;
+        userStart = cpuTime == AgentConfig.CPU_TIME_USER ? ProfilerEngine.threadMXBean.getCurrentThreadUserTime() : 0;
         startTime = System.currentTimeMillis();
-        finishTime = startTime;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Finish tracking. Must be called from the thread context was created for.
+     */
+    public void onFinishProcessing() {
+        durationNanos = System.nanoTime() - startNanos;
+        // JVM returns -1 for virtual threads, CPU time of a carrier thread doesn't belong to the call
+        if (cpuTime != AgentConfig.CPU_TIME_OFF && cpuStart >= 0)
+            cpuNanos = ProfilerEngine.threadMXBean.getCurrentThreadCpuTime() - cpuStart;
+        if (cpuTime == AgentConfig.CPU_TIME_USER && userStart >= 0)
+            userNanos = ProfilerEngine.threadMXBean.getCurrentThreadUserTime() - userStart;
+        thrObjs = thread.objs - thrObjsStart;
+        thrMem = thread.mem - thrMemStart;
+        long[] all = thread.allCounters;
+        ProfilerEngine.allCounters.sum(all);
+        allObjs = all[ProfilerEngine.ALL_OBJS] - allObjsStart;
+        allMem = all[ProfilerEngine.ALL_MEM] - allMemStart;
+        if (overheadNanosStart >= 0) {
+            overheadNanos = thread.overheadNanos - overheadNanosStart;
+            overheadBytes = thread.overheadBytes - overheadBytesStart;
+        }
+
+        if (sampled) {
+            thrObjSamples = thread.objSamples - thrObjSamplesStart;
+            thrMemSamples = thread.memSamples - thrMemSamplesStart;
+            allObjSamples = all[ProfilerEngine.ALL_OBJ_SAMPLES] - allObjSamplesStart;
+            allMemSamples = all[ProfilerEngine.ALL_MEM_SAMPLES] - allMemSamplesStart;
+            thrExactObjs = thread.exactObjs - thrExactObjsStart;
+            allExactObjs = all[ProfilerEngine.ALL_EXACT_OBJS] - allExactObjsStart;
+        }
     }
 
     /**
-     * Track object
-     * @param thrHash - Thread hash
+     * Link nested call to the tree. Must be called from the thread context was created for.
+     * @param child - just created nested context
      */
-    public void onObjectTracking( int thrHash ) {
-        if ( thrHash == threadHash ) {
-            thrObjs.incrementAndGet();
-            //if (!Log.checkIfLog( Log.LEVEL_DEBUG ) )
-            //    new Exception().printStackTrace(System.out);
+    void linkChild(ProfileContext child) {
+        // Nested calls of not linked child are not linked as well
+        child.root = root;
+        if (root.treeSize >= MAX_TREE_SIZE) {
+            unlinkedChildren++;
+            return;
         }
+        root.treeSize++;
+        if (children == null)
+            children = new ProfileContext[4];
+        else if (childCount == children.length)
+            children = Arrays.copyOf(children, childCount * 2);
+        children[childCount++] = child;
+        child.parent = this;
+    }
 
-        allObjs.incrementAndGet();
+    /**
+     * Must be called before the task is handed off to an executor. Can be called from any thread
+     */
+    void prepareAsync() {
+        if (async == null)
+            asyncUpdater.compareAndSet(this, null, new AtomicLongArray(ASYNC_STATS));
     }
 
     /**
-     * Track memory
-     * @param thrHash - Thread hash
-     * @param mem  - memory used by the item
+     * Add finished async task. Called from worker threads
      */
-    public void onMemoryTracking( int thrHash, long mem ) {
-        if ( thrHash == threadHash )
-            thrMem.addAndGet(mem);
+    void addAsync(long nanos, long objs, long mem, long objSamples, long memSamples, long exactObjs) {
+        AtomicLongArray a = async;
+        a.addAndGet(ASYNC_NANOS, nanos);
+        a.addAndGet(ASYNC_OBJS, objs);
+        a.addAndGet(ASYNC_MEM, mem);
+        if (sampled) {
+            a.addAndGet(ASYNC_OBJ_SAMPLES, objSamples);
+            a.addAndGet(ASYNC_MEM_SAMPLES, memSamples);
+            a.addAndGet(ASYNC_EXACT_OBJS, exactObjs);
+        }
+        // last, so a reader that sees the task sees its values
+        a.incrementAndGet(ASYNC_TASKS);
+    }
 
-        allMem.addAndGet(mem);
+    /**
+     * @return memory consumed in the thread, including nested calls. Valid after finish
+     */
+    long getThreadMem() {
+        return thrMem;
     }
 
     /**
-     * Finish tracking
+     * @return tracking objects created in the thread, including nested calls. Valid after finish
      */
-    public void onFinishProcessing() {
-        finishTime = System.currentTimeMillis();
+    long getThreadObjs() {
+        return thrObjs;
+    }
+
+    /**
+     * @return tracking objects created in all threads during the call. Valid after finish
+     */
+    long getAllObjs() {
+        return allObjs;
+    }
+
+    /**
+     * @return memory consumed in all threads during the call. Valid after finish
+     */
+    long getAllMem() {
+        return allMem;
+    }
+
+    /**
+     * @return time without linked nested calls. Valid after finish of the context and children
+     */
+    long getExclusiveNanos() {
+        long res = durationNanos;
+        for (int i = 0; i < childCount; i++)
+            res -= children[i].durationNanos;
+        return res;
+    }
+
+    /**
+     * @return memory without linked nested calls. Valid after finish of the context and children
+     */
+    long getExclusiveMem() {
+        long res = thrMem;
+        for (int i = 0; i < childCount; i++)
+            res -= children[i].thrMem;
+        return res;
+    }
+
+    /**
+     * Friendly name for the context
+     * @param shortStr - short name is without time
+     * @return name of the context
+     */
+    public String getName(boolean shortStr) {
+        // URL is more useful than the method name. Printing both method name and URL looks ugly.
+        String name = url != null ? url.toString() : method.name;
+        if (shortStr)
+            return name;
+        return Time.getTimeAsString(startTime) + " " + name;
     }
 
     @Override
     public String toString() {
-        return "ProfileContext: contextName=" + contextName + " threadHash=" + threadHash +
-                " Thread=" + thrObjs.get() + "/" + thrMem.get() + " All=" + allObjs.get() + "/" + allMem.get();
+        return "ProfileContext: contextName=" + getName(true) +
+                " Thread=" + thrObjs + "/" + thrMem + " All=" + allObjs + "/" + allMem;
     }
 
     /**
@@ -76,11 +292,153 @@ class ProfileContext {
      */
     public String getResultStr(boolean shortStr) {
 
-        if (shortStr)
-            return contextName + ";" + thrObjs.get() + ";" + thrMem.get() + ";" + allObjs.get() + ";" + allMem.get();
+        String contextName = getName(shortStr);
+
+        if (shortStr) {
+            String res = contextName + ";" + thrObjs + ";" + thrMem + ";" + allObjs + ";" + allMem;
+            if (types != null)
+                res += ";" + types.getTopStr(topTypes, true);
+            AtomicLongArray a = async;
+            if (a != null && a.get(ASYNC_TASKS) > 0)
+                res += ";async=" + a.get(ASYNC_TASKS) + "/" + a.get(ASYNC_OBJS) + "/" + a.get(ASYNC_MEM);
+            return res;
+        }
+
+        String res = contextName + " Execution time:" + Time.getNanosAsMsString(durationNanos) + " ms.";
+        if (cpuNanos >= 0)
+            res += " CPU time: " + Time.getNanosAsMsString(cpuNanos) + " ms" +
+                    (userNanos >= 0 ? ", user time: " + Time.getNanosAsMsString(userNanos) + " ms." : ".");
+        res += " In method's thread created tracking objects: " + estimateStr(thrObjs, thrObjSamples, thrExactObjs) + ", consumed memory: " + estimateStr(thrMem, thrMemSamples, 0) + " bytes. " +
+                getAsyncStr() +
+                "In all threads created tracking objects: " + estimateStr(allObjs, allObjSamples, allExactObjs) + ", consumed memory: " + estimateStr(allMem, allMemSamples, 0) + " bytes.";
+        if (overheadNanos >= 0)
+            res += " Agent overhead in method's thread: " + Time.getNanosAsMsString(overheadNanos) + " ms, " + overheadBytes + " bytes.";
+        if (types != null)
+            res += " Top allocated types in method's thread: " + types.getTopStr(topTypes, false) + ".";
+        if (unlinkedChildren > 0)
+            res += " Not linked nested calls: " + unlinkedChildren + ".";
+        if (childCount > 0 && root == this) {
+            StringBuilder sb = new StringBuilder(res);
+            appendTree(sb, 1);
+            res = sb.toString();
+        }
+        return res;
+    }
+
+    // Nested calls of the request, one line per call, indented by depth
+    private void appendTree(StringBuilder sb, int depth) {
+        for (int i = 0; i < childCount; i++) {
+            ProfileContext child = children[i];
+            sb.append('\n');
+            for (int j = 0; j < depth; j++)
+                sb.append("  ");
+            sb.append(child.method.name)
+                    .append(" time incl: ").append(Time.getNanosAsMsString(child.durationNanos))
+                    .append(" ms, excl: ").append(Time.getNanosAsMsString(child.getExclusiveNanos()))
+                    .append(" ms, memory incl: ").append(child.thrMem)
+                    .append(", excl: ").append(child.getExclusiveMem()).append(" bytes");
+            if (child.unlinkedChildren > 0)
+                sb.append(", not linked nested calls: ").append(child.unlinkedChildren);
+            child.appendTree(sb, depth + 1);
+        }
+    }
+
+    /**
+     * Result as a binary CALL record, see BinaryResultFormat. Method must be in the dictionary already.
+     * Per type allocations and call tree are in text formats only.
+     * @param buf       - output
+     * @param prevStart - start time of the previous record
+     */
+    void putBinary(ByteBuffer buf, long prevStart) {
+        AtomicLongArray a = async;
+        boolean hasAsync = a != null && a.get(ASYNC_TASKS) > 0;
+        int flags = (sampled ? BinaryResultFormat.FLAG_SAMPLED : 0) |
+                (url != null ? BinaryResultFormat.FLAG_URL : 0) |
+                (cpuNanos >= 0 ? BinaryResultFormat.FLAG_CPU : 0) |
+                (userNanos >= 0 ? BinaryResultFormat.FLAG_USER : 0) |
+                (hasAsync ? BinaryResultFormat.FLAG_ASYNC : 0);
 
-        return contextName + " Execution time:" + (finishTime - startTime) + " ms. In method's thread created tracking objects: " + thrObjs.get() + ", consumed memory: " + thrMem.get() + " bytes. " +
-                "In all threads created tracking objects: " + allObjs.get() + ", consumed memory: " + allMem.get() + " bytes.";
+        buf.put(BinaryResultFormat.CALL);
+        BinaryResultFormat.putVarLong(buf, method.id);
+        BinaryResultFormat.putVarLong(buf, flags);
+        BinaryResultFormat.putSignedVarLong(buf, startTime - prevStart);
+        BinaryResultFormat.putSignedVarLong(buf, durationNanos);
+        BinaryResultFormat.putSignedVarLong(buf, thrObjs);
+        BinaryResultFormat.putSignedVarLong(buf, thrMem);
+        BinaryResultFormat.putSignedVarLong(buf, allObjs);
+        BinaryResultFormat.putSignedVarLong(buf, allMem);
+        if (sampled) {
+            BinaryResultFormat.putSignedVarLong(buf, thrObjSamples);
+            BinaryResultFormat.putSignedVarLong(buf, thrMemSamples);
+            BinaryResultFormat.putSignedVarLong(buf, allObjSamples);
+            BinaryResultFormat.putSignedVarLong(buf, allMemSamples);
+        }
+        if (url != null)
+            BinaryResultFormat.putString(buf, url.toString());
+        if (cpuNanos >= 0)
+            BinaryResultFormat.putSignedVarLong(buf, cpuNanos);
+        if (userNanos >= 0)
+            BinaryResultFormat.putSignedVarLong(buf, userNanos);
+        if (hasAsync) {
+            BinaryResultFormat.putSignedVarLong(buf, a.get(ASYNC_TASKS));
+            BinaryResultFormat.putSignedVarLong(buf, a.get(ASYNC_NANOS));
+            BinaryResultFormat.putSignedVarLong(buf, a.get(ASYNC_OBJS));
+            BinaryResultFormat.putSignedVarLong(buf, a.get(ASYNC_MEM));
+        }
+    }
+
+    /**
+     * Result as a JSON object. Same fields as the JSON output of the result decoder plus history seq.
+     * Per type allocations and call tree are in text formats only.
+     * @param sb - output
+     */
+    void appendJson(StringBuilder sb) {
+        sb.append("{\"seq\":").append(historySeq).append(",\"time\":").append(startTime).append(",\"method\":");
+        Print.appendJsonString(sb, method.name);
+        if (url != null)
+            Print.appendJsonString(sb.append(",\"url\":"), url.toString());
+        sb.append(",\"durationNs\":").append(durationNanos);
+        if (cpuNanos >= 0)
+            sb.append(",\"cpuNs\":").append(cpuNanos);
+        if (userNanos >= 0)
+            sb.append(",\"userNs\":").append(userNanos);
+        sb.append(",\"estimate\":").append(sampled)
+                .append(",\"thrObjs\":").append(thrObjs).append(",\"thrMem\":").append(thrMem)
+                .append(",\"allObjs\":").append(allObjs).append(",\"allMem\":").append(allMem);
+        if (overheadNanos >= 0)
+            sb.append(",\"overheadNs\":").append(overheadNanos).append(",\"overheadBytes\":").append(overheadBytes);
+        AtomicLongArray a = async;
+        if (a != null && a.get(ASYNC_TASKS) > 0)
+            sb.append(",\"asyncTasks\":").append(a.get(ASYNC_TASKS)).append(",\"asyncNs\":").append(a.get(ASYNC_NANOS))
+                    .append(",\"asyncObjs\":").append(a.get(ASYNC_OBJS)).append(",\"asyncMem\":").append(a.get(ASYNC_MEM));
+        sb.append('}');
+    }
+
+    // Async tasks part of the full result, empty if the call didn't submit tasks
+    private String getAsyncStr() {
+        AtomicLongArray a = async;
+        if (a == null)
+            return "";
+        long tasks = a.get(ASYNC_TASKS);
+        if (tasks == 0)
+            return "";
+        return "In " + tasks + " async tasks time: " + Time.getNanosAsMsString(a.get(ASYNC_NANOS)) +
+                " ms, created tracking objects: " + estimateStr(a.get(ASYNC_OBJS), a.get(ASYNC_OBJ_SAMPLES), a.get(ASYNC_EXACT_OBJS)) +
+                ", consumed memory: " + estimateStr(a.get(ASYNC_MEM), a.get(ASYNC_MEM_SAMPLES), 0) + " bytes. ";
+    }
+
+    /**
+     * Value with error bounds for allocation sampling mode. Sample counts are Poisson distributed,
+     * so 95% confidence interval is about 1.96/sqrt(samples) of the estimate.
+     * Exact part of the value has no error: value that is all exact is printed as is.
+     */
+    private String estimateStr(long value, long samples, long exact) {
+        if (!sampled || (exact > 0 && exact == value))
+            return String.valueOf(value);
+        if (samples == 0)
+            return exact > 0 ? "~" + value + " (no samples)" : "~0 (no samples)";
+        // Bound of the sampled part, relative to the whole value
+        return "~" + value + " (+-" + Math.round(196.0 / Math.sqrt(samples) * (value - exact) / value) + "%)";
     }
 
 }
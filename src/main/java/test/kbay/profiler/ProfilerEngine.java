@@ -3,80 +3,238 @@ package test.kbay.profiler;
 import test.kbay.AgentConfig;
 import test.kbay.util.Log;
 import test.kbay.util.Reflection;
-import test.kbay.util.Time;
+import test.kbay.util.StripedCounter;
 
-import java.io.FileOutputStream;
-import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.instrument.Instrumentation;
-import java.lang.reflect.Method;
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 
 /**
  * Global profiler engine.
  * All calls are concurrent friendly.
  */
 public class ProfilerEngine {
-    // What is in the process of profiling
-    private static final ConcurrentHashMap<ProfileContext, ProfileContext> activeContext; // Key: thread Id. Value list of method to profile
-    private static final ConcurrentLinkedQueue<ProfileContext> historyContext; // Profile history. History data is end result for the user.
-
-    // Stack per thread. Key: Thread hash, Value context stack
-    private static final ConcurrentHashMap<Integer, LinkedList<ProfileContext>> contextStack = new ConcurrentHashMap<>();
+    private static volatile HistoryBuffer historyContext = new HistoryBuffer(50); // Profile history. History data is end result for the user.
+
+    // State of every thread: allocation accumulators and context stack. Allocation hooks update the current
+    // thread only, so the cost doesn't depend on how many contexts are in the process of profiling.
+    private static final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            ThreadState thr = new ThreadState();
+            if (allocSampleBytes > 0)
+                thr.bytesUntilSample = nextSampleInterval();
+            return thr;
+        }
+    };
+
+    // Allocation counters for all threads, fields of allCounters. Contexts keep values at start and at finish,
+    // so 'all threads' metrics is a difference and hooks don't touch any context. Fields are read in one pass
+    static final int ALL_OBJS = 0;
+    static final int ALL_MEM = 1;
+    // Number of samples behind estimated values. Allocation sampling mode only
+    static final int ALL_OBJ_SAMPLES = 2;
+    static final int ALL_MEM_SAMPLES = 3;
+    // Objects that are counted exactly in allocation sampling mode. They have no samples and no error
+    static final int ALL_EXACT_OBJS = 4;
+    static final int ALL_FIELDS = 5;
+    static final StripedCounter allCounters = new StripedCounter(Runtime.getRuntime().availableProcessors() * 2, ALL_FIELDS);
+
+    // Types that are counted as tracking objects by allocation hook. Path notation, Example: java/lang/String.
+    // Doesn't change after init
+    private static Set<String> trackingTypes = new HashSet<>();
+
+    // Memory accounting by allocation hook. If off, the hook counts tracking objects only
+    private static boolean memTrack = true;
+
+    // Mean interval in bytes between sampled allocations. 0 - every allocation is processed
+    private static long allocSampleBytes = 0;
+
+    // Number of top allocated types per context. 0 - per type tracking is off
+    private static int topTypes = 0;
+
+    // Call tree aggregated over requests. Null if call tree mode is off
+    private static volatile CallTree callTree;
+
+    // Agent self overhead. Null if overhead mode is off
+    private static volatile Overhead overhead;
+
+    // CPU time per context, AgentConfig.CPU_TIME_* mode
+    private static int cpuTime = AgentConfig.CPU_TIME_OFF;
+    // Source of thread CPU time. Null if cpuTime is off
+    static ThreadMXBean threadMXBean;
+
+    // Servlet API methods, resolved once per request/response class
+    private static final Reflection.MethodCache getRequestURL = new Reflection.MethodCache("getRequestURL");
+    private static final Reflection.MethodCache setStatus = new Reflection.MethodCache("setStatus", int.class);
+    private static final Reflection.MethodCache getWriter = new Reflection.MethodCache("getWriter");
+    private static final Reflection.MethodCache getParameter = new Reflection.MethodCache("getParameter", String.class);
+    private static final Reflection.MethodCache setContentType = new Reflection.MethodCache("setContentType", String.class);
 
     // might be null during tests
     private static AgentConfig config;
+    // OpenMetrics page path suffix
+    private static volatile String metricsPath = "/profiler/metrics";
 
-    static {
-        activeContext = new ConcurrentHashMap<>();
-        historyContext = new ConcurrentLinkedQueue<>();
-    }
+    // Background writer for the result file. Null if results go to the console
+    private static volatile ResultWriter resultWriter;
+
+    // Live metrics file. Null if it is not configured
+    private static MetricsPublisher metricsPublisher;
+
+    // Built-in HTTP server. Null if it is not configured
+    private static ProfilerHttpServer httpServer;
 
     /**
      * init must be call
      *
      * @param conf - agent configuration
      */
-    public static void init(AgentConfig conf) {
+    public static synchronized void init(AgentConfig conf) {
+        shutdown();
+
         config = conf;
+        metricsPath = conf.metricsPath;
+        historyContext = new HistoryBuffer(conf.profileHistoryLen);
+
+        // Application types are counted by instrumented constructors
+        Set<String> types = new HashSet<>();
+        for (String obj2tr : conf.object2track) {
+            if (!AgentConfig.isTrackedByConstructor(obj2tr))
+                types.add(obj2tr.replace('.', '/'));
+        }
+        trackingTypes = types;
+        memTrack = conf.memTrack;
+        allocSampleBytes = conf.allocSampleBytes;
+        topTypes = conf.topTypes;
+        initCpuTime(conf.cpuTime);
+        callTree = conf.callTree ? new CallTree(conf.callTreeNodes) : null;
+        overhead = conf.overhead ? new Overhead() : null;
+
+        if (conf.resFn != null) {
+            try {
+                resultWriter = new ResultWriter(conf.resFn, conf.resultQueueLen, conf.resultQueueDrop, conf.shortOutput, conf.resultBinary);
+            } catch (Throwable ex) {
+                Log.error("Unable to create file for result printing. Results will be printed to console", ex);
+            }
+        }
+
+        if (conf.metricsFn != null) {
+            try {
+                metricsPublisher = new MetricsPublisher(conf.metricsFn, conf.profileHistoryLen, conf.metricsIntervalMs);
+            } catch (Throwable ex) {
+                Log.error("Unable to create live metrics file " + conf.metricsFn, ex);
+            }
+        }
+
+        if (conf.httpPort >= 0) {
+            try {
+                httpServer = new ProfilerHttpServer(conf.httpHost, conf.httpPort, conf.metricsPath);
+                Log.info("Profiler HTTP server is listening on " + conf.httpHost + " port " + httpServer.getPort());
+            } catch (Throwable ex) {
+                Log.error("Unable to start profiler HTTP server on " + conf.httpHost + " port " + conf.httpPort, ex);
+            }
+        }
+    }
+
+    /**
+     * Stop background activity and write pending results. Call it on application exit.
+     */
+    public static synchronized void shutdown() {
+        if (resultWriter != null) {
+            resultWriter.close();
+            resultWriter = null;
+        }
+        if (metricsPublisher != null) {
+            metricsPublisher.close();
+            metricsPublisher = null;
+        }
+        if (httpServer != null) {
+            httpServer.close();
+            httpServer = null;
+        }
     }
 
     /**
      * Reset internal contexts. Used in QA tests
      */
     public static void reset() {
-        activeContext.clear();
         historyContext.clear();
+        if (callTree != null)
+            callTree = new CallTree(config.callTreeNodes);
+        if (overhead != null)
+            overhead = new Overhead();
+    }
+
+    /**
+     * Register method for profiling. Called once per method during instrumentation.
+     *
+     * @param name - name of profiled method
+     * @return method id for startProfiling
+     */
+    public static int registerMethod(String name) {
+        return MethodInfo.register(name).id;
     }
 
     /**
      * startProfiling - entry point for profiling. Start profiling.
+     * Name lookup is done on every call, instrumented code uses method id instead.
      *
      * @param name               - name of profile call (name of profiled method)
      * @param httpServletRequest - optional Request that can be used to name context.
-     * @return profile context. Will be used for finishProfiling
      */
     public static void startProfiling(String name, Object httpServletRequest) {
-        // Creating friendly name for the context
+        startProfiling(registerMethod(name), httpServletRequest);
+    }
 
-        String profileName = buildProfileName(name, httpServletRequest);
+    /**
+     * startProfiling - entry point for profiling. Start profiling.
+     * Context keeps raw data only, friendly name will be built when results are rendered.
+     *
+     * @param methodId           - id of profiled method from registerMethod
+     * @param httpServletRequest - optional Request that can be used to name context.
+     */
+    public static void startProfiling(int methodId, Object httpServletRequest) {
+        ThreadState thr = threadState.get();
+        Overhead ovh = overhead;
+        if (ovh == null) {
+            startProfiling(thr, methodId, httpServletRequest);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        long startBytes = ovh.getThreadBytes();
+        startProfiling(thr, methodId, httpServletRequest);
+        ovh.add(Overhead.START, thr, startNanos, startBytes);
+    }
 
-        ProfileContext context = new ProfileContext(profileName);
+    private static void startProfiling(ThreadState thr, int methodId, Object httpServletRequest) {
+        MethodInfo method = MethodInfo.get(methodId);
+        if (method == null) {
+            Log.error("startProfiling get unknown method id " + methodId);
+            method = MethodInfo.register("unknown method " + methodId);
+        }
 
-        activeContext.put(context, context);
+        Object url = httpServletRequest != null ? getRequestUrl(httpServletRequest) : null;
 
-        Integer thrId = Thread.currentThread().hashCode();
-        LinkedList<ProfileContext> stack = contextStack.get(thrId);
-        if (stack == null) {
-            stack = new LinkedList<>();
-            contextStack.put(thrId, stack);
-        }
-        synchronized (stack) {
-            stack.add(context);
+        ProfileContext context = new ProfileContext(method, url, thr, allocSampleBytes > 0, topTypes, cpuTime, overhead != null);
+        if (callTree != null) {
+            ProfileContext parent = thr.peek();
+            if (parent != null)
+                parent.linkChild(context);
         }
+        thr.push(context);
 
         if (Log.checkIfLog(Log.LEVEL_INFO))
             Log.info("Create context: " + context);
@@ -86,42 +244,185 @@ public class ProfilerEngine {
      * finishProfiling - entry point for profiling. Finish profiling and make results available.
      */
     public static void finishProfiling() {
-        Integer thrId = Thread.currentThread().hashCode();
-        LinkedList<ProfileContext> stack = contextStack.get(thrId);
-        if (stack == null) {
-            Log.error("finishProfiling not found stack for therad id " + thrId);
+        ThreadState thr = threadState.get();
+        Overhead ovh = overhead;
+        if (ovh == null) {
+            finishProfiling(thr);
             return;
         }
+        long startNanos = System.nanoTime();
+        long startBytes = ovh.getThreadBytes();
+        finishProfiling(thr);
+        // Context is finished already, overhead of the finish goes to the caller
+        ovh.add(Overhead.FINISH, thr, startNanos, startBytes);
+    }
 
-        ProfileContext context = null;
-        synchronized (stack) {
-            context = stack.pollLast();
-
-            if (stack.size() == 0)
-                contextStack.remove(thrId);
-        }
-
+    private static void finishProfiling(ThreadState thr) {
+        ProfileContext context = thr.pop();
         if (context == null) {
-            Log.error("finishProfiling found empty stack for therad id " + thrId);
+            Log.error("finishProfiling found empty stack for thread " + Thread.currentThread().getName());
             return;
         }
 
-        context.onFinishProcessing();
+        // Allocations of nested call belong to the caller as well
+        ProfileContext parent = thr.peek();
+        if (parent != null && parent.types != null && context.types != null)
+            parent.types.merge(context.types);
 
-        activeContext.remove(context);
+        context.onFinishProcessing();
+        context.method.onFinish(thr.stripe, context);
 
-        // History size is critical. No need to lock
-        while (historyContext.size() >= config.profileHistoryLen)
-            historyContext.poll();
+        // Request is finished, all nested calls are finished as well
+        CallTree tree = callTree;
+        if (tree != null && parent == null)
+            tree.add(context);
 
-        historyContext.add(context);
+        // Ring buffer keeps history size, oldest context is overwritten
+        historyContext.publish(context);
 
-        printResultStr( context.getResultStr( config.shortOutput ) );
+        // Result file is written in background, formatting is done there as well
+        ResultWriter writer = resultWriter;
+        if (writer != null)
+            writer.write(context);
+        else
+            printResultStr( context.getResultStr( config.shortOutput ) );
 
         if (Log.checkIfLog(Log.LEVEL_INFO))
             Log.info("Finish to process a context: " + context);
     }
 
+    /**
+     * Patch for dispatcher method. If URL ends with 'profiler', responds with profiling data.
+     * If URL ends with metricsPath, responds with OpenMetrics text.
+     * With format=json the history is streamed as JSON, see JsonResults. Parameters for JSON:
+     * limit - max number of records, since - first history seq, method - only calls of the method.
+     * @param httpServletRequest  - request. Expected javax.servlet.http.HttpServletRequest
+     * @param httpServletResponse - response. Expected javax.servlet.http.HttpServletResponse
+     * @return true if request was processed and dispatcher should return
+     */
+    public static boolean onDispatcherRequest( Object httpServletRequest, Object httpServletResponse ) {
+        if (httpServletRequest == null || httpServletResponse == null)
+            return false;
+
+        Overhead ovh = overhead;
+        if (ovh == null)
+            return dispatcherRequest(httpServletRequest, httpServletResponse);
+        ThreadState thr = threadState.get();
+        long startNanos = System.nanoTime();
+        long startBytes = ovh.getThreadBytes();
+        boolean res = dispatcherRequest(httpServletRequest, httpServletResponse);
+        ovh.add(Overhead.DISPATCHER, thr, startNanos, startBytes);
+        return res;
+    }
+
+    private static boolean dispatcherRequest( Object httpServletRequest, Object httpServletResponse ) {
+        Object url = getRequestUrl(httpServletRequest);
+        if (!(url instanceof CharSequence))
+            return false;
+        boolean metrics = endsWith((CharSequence) url, metricsPath);
+        if (!metrics && !endsWith((CharSequence) url, "profiler"))
+            return false;
+
+        try {
+            MethodHandle setStatusMethod = setStatus.find(httpServletResponse);
+            MethodHandle getWriterMethod = getWriter.find(httpServletResponse);
+            if (setStatusMethod == null || getWriterMethod == null) {
+                Log.warn("Failed to find methods for HttpResponse");
+                return false;
+            }
+
+            if (metrics) {
+                MethodHandle setContentTypeMethod = setContentType.find(httpServletResponse);
+                if (setContentTypeMethod != null)
+                    setContentTypeMethod.invokeExact(httpServletResponse, (Object) OpenMetrics.CONTENT_TYPE);
+                setStatusMethod.invokeExact(httpServletResponse, 200);
+                return onPrintMetrics((PrintWriter) (Object) getWriterMethod.invokeExact(httpServletResponse));
+            }
+
+            MethodHandle getParameterMethod = getParameter.find(httpServletRequest);
+            if (getParameterMethod != null && "json".equals(getParameter(getParameterMethod, httpServletRequest, "format")))
+                return onJsonRequest(httpServletRequest, httpServletResponse, getParameterMethod, setStatusMethod, getWriterMethod);
+
+            setStatusMethod.invokeExact(httpServletResponse, 200);
+            PrintWriter writer = (PrintWriter) (Object) getWriterMethod.invokeExact(httpServletResponse);
+            return onPrintProfilingResults(writer);
+        }
+        catch (Throwable ex) {
+            Log.error("onDispatcherRequest reflection error", ex);
+            return false;
+        }
+    }
+
+    // format=json page of onDispatcherRequest
+    private static boolean onJsonRequest(Object httpServletRequest, Object httpServletResponse, MethodHandle getParameterMethod,
+                                         MethodHandle setStatusMethod, MethodHandle getWriterMethod) throws Throwable {
+        JsonResults.Query query = new JsonResults.Query(getParameter(getParameterMethod, httpServletRequest, "limit"),
+                getParameter(getParameterMethod, httpServletRequest, "since"),
+                getParameter(getParameterMethod, httpServletRequest, "method"));
+
+        MethodHandle setContentTypeMethod = setContentType.find(httpServletResponse);
+        if (setContentTypeMethod != null)
+            setContentTypeMethod.invokeExact(httpServletResponse, (Object) JsonResults.CONTENT_TYPE);
+        setStatusMethod.invokeExact(httpServletResponse, query.error == null ? 200 : 400);
+        PrintWriter writer = (PrintWriter) (Object) getWriterMethod.invokeExact(httpServletResponse);
+        if (query.error != null) {
+            query.writeError(writer);
+            return true;
+        }
+        return onPrintJsonResults(writer, query.limit, query.since, query.method);
+    }
+
+    private static String getParameter(MethodHandle getParameterMethod, Object httpServletRequest, String name) throws Throwable {
+        return (String) (Object) getParameterMethod.invokeExact(httpServletRequest, (Object) name);
+    }
+
+    /**
+     * Entry point for instrumented executor call sites. Task submitted inside a profiled call is wrapped,
+     * the worker thread will be attached to the call while the task runs. Tasks the executor may rely on
+     * by type, Comparable and RunnableFuture, are not wrapped.
+     *
+     * @param task - task to submit
+     * @return wrapped task, or the same task if there is no active call
+     */
+    public static Runnable wrapRunnable(Runnable task) {
+        ProfileContext context = getAsyncContext(task);
+        return context == null ? task : new ContextTask.Run(context, task);
+    }
+
+    /**
+     * Callable version of wrapRunnable
+     */
+    public static <V> Callable<V> wrapCallable(Callable<V> task) {
+        ProfileContext context = getAsyncContext(task);
+        return context == null ? task : new ContextTask.Call<>(context, task);
+    }
+
+    /**
+     * Tasks of ExecutorService.invokeAll and invokeAny
+     *
+     * @param tasks - tasks to submit
+     * @return list of wrapped tasks, or the same collection if there is no active call
+     */
+    public static <T> Collection<Callable<T>> wrapCallables(Collection<? extends Callable<T>> tasks) {
+        ProfileContext context = getAsyncContext(tasks);
+        @SuppressWarnings("unchecked")
+        Collection<Callable<T>> res = (Collection<Callable<T>>) tasks;
+        if (context == null)
+            return res;
+        List<Callable<T>> wrapped = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks)
+            wrapped.add(task instanceof ContextTask || isTypedTask(task) ? task : new ContextTask.Call<>(context, task));
+        return wrapped;
+    }
+
+    /**
+     * Supplier version of wrapRunnable. Example: CompletableFuture.supplyAsync
+     */
+    public static <T> Supplier<T> wrapSupplier(Supplier<T> task) {
+        ProfileContext context = getAsyncContext(task);
+        return context == null ? task : new ContextTask.Supply<>(context, task);
+    }
+
     /**
      * Patch that provides profiling data for HTTP server.Profile result data will be written to writer
      * @param writer - writer for respond
@@ -135,6 +436,20 @@ public class ProfilerEngine {
             for (String prRes : profResults) {
                 writer.println(prRes);
             }
+
+            List<String> latency = getLatencyResults();
+            writer.println("Latency per method for " + latency.size() + " methods:");
+            for (String l : latency) {
+                writer.println(l);
+            }
+
+            for (String l : getOverheadResults()) {
+                writer.println(l);
+            }
+
+            for (String l : getCallTreeResults()) {
+                writer.println(l);
+            }
             // Done writing, let's flush the data
             writer.flush();
             return true;
@@ -146,18 +461,214 @@ public class ProfilerEngine {
     }
 
     /**
-     * Entry point for tracking Object feed. We don't keep tracking for object type even it is easy to add.
+     * Profile history as JSON, streamed from the history without copying it
+     * @param writer - writer for respond
+     * @param limit  - max number of records
+     * @param since  - first history seq to return. If negative, the newest records are returned
+     * @param method - only calls of the method if not null
+     * @return true if profile data was written into writer.
      */
-    public static void processTrackingObject() {
+    public static boolean onPrintJsonResults( java.io.PrintWriter writer, int limit, long since, String method ) {
+        try {
+            JsonResults.write(writer, historyContext, limit, since, method);
+            return true;
+        }
+        catch (Exception ex) {
+            Log.error("onPrintJsonResults error", ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return port of the built-in HTTP server or -1 if it is not running
+     */
+    public static synchronized int getHttpPort() {
+        return httpServer != null ? httpServer.getPort() : -1;
+    }
+
+    /**
+     * @return address the built-in HTTP server is bound to or null if it is not running
+     */
+    public static synchronized InetAddress getHttpAddress() {
+        return httpServer != null ? httpServer.getAddress().getAddress() : null;
+    }
+
+    /**
+     * Method totals in OpenMetrics text format. Cost doesn't depend on the history size
+     * @param writer - writer for respond
+     * @return true if metrics were written into writer.
+     */
+    public static boolean onPrintMetrics( java.io.PrintWriter writer ) {
+        try {
+            OpenMetrics.write(writer);
+            return true;
+        }
+        catch (Exception ex) {
+            Log.error("onPrintMetrics error", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Entry point for allocation feed. Counts memory and tracking objects.
+     * In allocation sampling mode most of the calls only decrement per thread byte counter. Sampled
+     * allocations are scaled back up, so values are unbiased estimates.
+     *
+     * @param type - allocated type in path notation. Example: java/lang/String
+     * @param size - allocation size in bytes
+     */
+    public static void processAllocation(String type, long size) {
+        processAllocation(type, -1, size);
+    }
+
+    /**
+     * Entry point for allocation feed. Counts memory, tracking objects and allocations per type.
+     * In allocation sampling mode most of the calls only decrement per thread byte counter. Sampled
+     * allocations are scaled back up, so values are unbiased estimates.
+     *
+     * @param type  - allocated type in path notation. Example: java/lang/String. Element type for arrays
+     * @param count - array length or -1 if it is not an array
+     * @param size  - allocation size in bytes
+     */
+    public static void processAllocation(String type, int count, long size) {
+        ThreadState thr = threadState.get();
+        Overhead ovh = overhead;
+        if (ovh == null) {
+            processAllocation(thr, type, count, size);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        long startBytes = ovh.getThreadBytes();
+        processAllocation(thr, type, count, size);
+        ovh.add(Overhead.ALLOCATION, thr, startNanos, startBytes);
+    }
 
-        if (activeContext.isEmpty())
-            return; // no contexts to update
+    private static void processAllocation(ThreadState thr, String type, int count, long size) {
+        boolean array = count >= 0;
 
-        int thrHash = Thread.currentThread().hashCode();
+        if (!memTrack) {
+            if (!array && trackingTypes.contains(type))
+                processTrackingObject(thr, getTypeId(thr, type, false));
+            return;
+        }
+
+        long sampleBytes = allocSampleBytes;
+        if (sampleBytes <= 0) {
+            if (!array && trackingTypes.contains(type)) {
+                thr.objs++;
+                allCounters.add(thr.stripe, ALL_OBJS, 1);
+            }
+            thr.mem += size;
+            allCounters.add(thr.stripe, ALL_MEM, size);
+
+            if (topTypes > 0)
+                addTypeAllocation(thr, type, array, 1, size);
+            return;
+        }
+
+        thr.bytesUntilSample -= size;
+        if (thr.bytesUntilSample > 0)
+            return;
+        thr.bytesUntilSample = nextSampleInterval();
+
+        // Intervals between samples are exponential, so allocation of 'size' bytes
+        // is sampled with probability 1 - exp(-size/mean). Weight is 1/probability.
+        double weight = 1.0 / -Math.expm1(-(double) size / sampleBytes);
+
+        long objs = Math.round(weight);
+        if (!array && trackingTypes.contains(type)) {
+            thr.objs += objs;
+            thr.objSamples++;
+            allCounters.add(thr.stripe, ALL_OBJS, objs);
+            allCounters.add(thr.stripe, ALL_OBJ_SAMPLES, 1);
+        }
+
+        long mem = Math.round(size * weight);
+        thr.mem += mem;
+        thr.memSamples++;
+        allCounters.add(thr.stripe, ALL_MEM, mem);
+        allCounters.add(thr.stripe, ALL_MEM_SAMPLES, 1);
+
+        if (topTypes > 0)
+            addTypeAllocation(thr, type, array, objs, mem);
+    }
+
+    private static void processTrackingObject(ThreadState thr, int typeId) {
+        countExactObject(thr);
+
+        if (topTypes > 0) {
+            ProfileContext context = thr.peek();
+            if (context != null && context.types != null)
+                context.types.add(typeId, 1, 0);
+        }
+    }
+
+    // Object is counted exactly. In allocation sampling mode the exact part of the estimate is kept apart
+    private static void countExactObject(ThreadState thr) {
+        thr.objs++;
+        allCounters.add(thr.stripe, ALL_OBJS, 1);
+        if (allocSampleBytes > 0) {
+            thr.exactObjs++;
+            allCounters.add(thr.stripe, ALL_EXACT_OBJS, 1);
+        }
+    }
+
+    // Allocations per type go to the innermost context. Caller gets them when nested call is finished.
+    private static void addTypeAllocation(ThreadState thr, String type, boolean array, long count, long mem) {
+        ProfileContext context = thr.peek();
+        if (context != null && context.types != null)
+            context.types.add(getTypeId(thr, type, array), count, mem);
+    }
+
+    // Allocations of a type come in runs, the last type of the thread saves hashing and map lookup
+    private static int getTypeId(ThreadState thr, String type, boolean array) {
+        if (type == thr.lastType && array == thr.lastTypeArray)
+            return thr.lastTypeId;
+        int id = TypeRegistry.getId(type, array);
+        thr.lastType = type;
+        thr.lastTypeArray = array;
+        thr.lastTypeId = id;
+        return id;
+    }
+
+    /**
+     * Register application type that is counted by its constructors. Called once per type during instrumentation.
+     * @param className - class name. Example: my.app.Order
+     * @return type id for processTrackingObject
+     */
+    public static int registerType(String className) {
+        return TypeRegistry.getId(className.replace('.', '/'), false);
+    }
 
-        for (ProfileContext cont : activeContext.values()) {
-            cont.onObjectTracking(thrHash);
+    /**
+     * Entry point for instrumented constructors of tracking objects. Objects are counted exactly,
+     * even in allocation sampling mode.
+     * @param typeId - type id from registerType
+     */
+    public static void processTrackingObject(int typeId) {
+        ThreadState thr = threadState.get();
+        Overhead ovh = overhead;
+        if (ovh == null) {
+            processTrackingObject(thr, typeId);
+            return;
         }
+        long startNanos = System.nanoTime();
+        long startBytes = ovh.getThreadBytes();
+        processTrackingObject(thr, typeId);
+        ovh.add(Overhead.TRACKING_OBJECT, thr, startNanos, startBytes);
+    }
+
+    /**
+     * Entry point for tracking Object feed. We don't keep tracking for object type even it is easy to add.
+     */
+    public static void processTrackingObject() {
+        ThreadState thr = threadState.get();
+        Overhead ovh = overhead;
+        long startNanos = ovh != null ? System.nanoTime() : 0;
+        countExactObject(thr);
+        // Hook doesn't allocate, time only
+        if (ovh != null)
+            ovh.add(Overhead.TRACKING_OBJECT, thr, startNanos);
     }
 
     /**
@@ -166,14 +677,14 @@ public class ProfilerEngine {
      * @param memUsage - memory usage
      */
     public static void processmemoryUsage(long memUsage) {
-
-        if (activeContext.isEmpty())
-            return; // no contexts to update
-
-        int thrHash = Thread.currentThread().hashCode();
-
-        for (ProfileContext cont : activeContext.values())
-            cont.onMemoryTracking(thrHash, memUsage);
+        ThreadState thr = threadState.get();
+        Overhead ovh = overhead;
+        long startNanos = ovh != null ? System.nanoTime() : 0;
+        thr.mem += memUsage;
+        allCounters.add(thr.stripe, ALL_MEM, memUsage);
+        // Hook doesn't allocate, time only
+        if (ovh != null)
+            ovh.add(Overhead.MEMORY_USAGE, thr, startNanos);
     }
 
     /**
@@ -188,6 +699,20 @@ public class ProfilerEngine {
             res2print.append(r + "\n");
         }
 
+        List<String> latency = getLatencyResults();
+        res2print.append("Latency per method for " + latency.size() + " methods:\n");
+        for (String l : latency) {
+            res2print.append(l + "\n");
+        }
+
+        for (String l : getOverheadResults()) {
+            res2print.append(l + "\n");
+        }
+
+        for (String l : getCallTreeResults()) {
+            res2print.append(l + "\n");
+        }
+
         printResultStr(res2print.toString());
     }
 
@@ -195,78 +720,158 @@ public class ProfilerEngine {
      * print results as a list. Needed for requests by demand
      */
     public static List<String> getResults() {
-        List<String> res = new LinkedList<>();
-        for (ProfileContext prCont : historyContext) {
+        List<ProfileContext> history = historyContext.snapshot();
+        List<String> res = new ArrayList<>(history.size());
+        for (ProfileContext prCont : history) {
             res.add(prCont.getResultStr(config.shortOutput));
         }
         return res;
     }
 
+    /**
+     * Latency percentiles for every called method. Unlike the history, it covers all the calls.
+     */
+    public static List<String> getLatencyResults() {
+        List<String> res = new ArrayList<>();
+        for (MethodInfo method : MethodInfo.getAll()) {
+            String str = method.getLatencyStr();
+            if (str != null)
+                res.add(str);
+        }
+        return res;
+    }
 
-    ////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * Agent overhead per hook, header and a line per hook. Empty if overhead mode is off.
+     */
+    public static List<String> getOverheadResults() {
+        Overhead ovh = overhead;
+        if (ovh == null)
+            return new ArrayList<>();
+        return ovh.getResults();
+    }
 
     /**
-     * Generate name for profiled item
-     * @param name  - name of prifiled item
-     * @param httpServletRequest  - optional request. Will be used to extract URL
-     * @return name for profile
+     * Call tree aggregated over requests, header and indented nodes. Empty if call tree mode is off.
      */
-    private static String buildProfileName(String name, Object httpServletRequest) {
-        StringBuilder profName = new StringBuilder();
-        if (!config.shortOutput)
-            profName.append(Time.getCurrentTimeAsString()).append(" ");
+    public static List<String> getCallTreeResults() {
+        CallTree tree = callTree;
+        if (tree == null)
+            return new ArrayList<>();
+        return tree.getResults();
+    }
 
-        name = name.replace('/','.'); // method name
 
-        // Check the args. If we see HTTP Request
-        if (httpServletRequest != null) {
+    ////////////////////////////////////////////////////////////////////////////////////////
+
+    static Overhead getOverhead() {
+        return overhead;
+    }
+
+    static HistoryBuffer getHistory() {
+        return historyContext;
+    }
+
+    static ThreadState getThreadState() {
+        return threadState.get();
+    }
+
+    // Context the task belongs to: current call, or the call the thread runs a task for. Null if there is none
+    private static ProfileContext getAsyncContext(Object task) {
+        if (task == null || task instanceof ContextTask || isTypedTask(task))
+            return null;
+        ThreadState thr = threadState.get();
+        ProfileContext context = thr.peek();
+        if (context == null)
+            context = thr.attached;
+        if (context != null)
+            context.prepareAsync();
+        return context;
+    }
+
+    // Wrapper would hide the type: PriorityBlockingQueue casts tasks to Comparable,
+    // FutureTask subclasses are checked with instanceof and returned by shutdownNow
+    private static boolean isTypedTask(Object task) {
+        return task instanceof Comparable || task instanceof RunnableFuture;
+    }
+
+    // Thread CPU time can be not supported or disabled by default for the JVM
+    private static void initCpuTime(int mode) {
+        ThreadMXBean bean = null;
+        if (mode != AgentConfig.CPU_TIME_OFF) {
             try {
-                Log.debug("buildProfileName called with httpServletRequest class: " + httpServletRequest.getClass().getName() );
-
-                // Here we can't just do httpServletRequest.getQueryString() because class location is unknown and we will end up
-                // with java.lang.NoClassDefFoundError. So we have to enumerate the methods
-
-                Method getRequestURLMethod = Reflection.findMethodByName( httpServletRequest, "getRequestURL" );
-                if (getRequestURLMethod!=null) {
-                    Object url = getRequestURLMethod.invoke(httpServletRequest);
-                    Log.debug("buildProfileName found caller url: " + url );
-                    // Substitute the method name with URL if available. Printing both method name and URL looks ugly.
-                    if (url!=null)
-                        name = url.toString();
+                bean = ManagementFactory.getThreadMXBean();
+                if (!bean.isCurrentThreadCpuTimeSupported()) {
+                    Log.warn("Thread CPU time is not supported by JVM, cpuTime is ignored");
+                    bean = null;
                 }
-                else {
-                    Log.warn("Failed to find method for HttpRequest");
+                else if (!bean.isThreadCpuTimeEnabled()) {
+                    bean.setThreadCpuTimeEnabled(true);
                 }
-
-            } catch (Throwable ex) {
-                Log.warn("Unable to enrich profile name due an error: " + ex.getMessage(), ex);
+            }
+            catch (Throwable ex) {
+                Log.warn("Unable to enable thread CPU time, cpuTime is ignored", ex);
+                bean = null;
             }
         }
-
-        if (name != null || name.length() == 0)
-            profName.append(name);
-
-        return profName.toString();
+        // Contexts check the mode only, bean must be ready first
+        threadMXBean = bean;
+        cpuTime = bean != null ? mode : AgentConfig.CPU_TIME_OFF;
     }
 
-    // Note:  synchronized might be a bottleneck if there are huge number of calls in profiling.
-    //      So far it is not our case, will work fine.
-    private static synchronized void printResultStr(String str) {
-        PrintStream output = System.err;
+    // Random number of bytes till next sample. Exponential distribution with allocSampleBytes mean
+    private static long nextSampleInterval() {
+        double rnd = ThreadLocalRandom.current().nextDouble(); // [0,1)
+        return 1 + (long) (-Math.log(1.0 - rnd) * allocSampleBytes);
+    }
 
-        if (config != null && config.resFn != null) {
-            try {
-                output = new PrintStream(
-                        new FileOutputStream(config.resFn, true));
-            } catch (Throwable ex) {
-                Log.error("Unable to create file for result printing", ex);
+    /**
+     * Extract URL from the request
+     * @param httpServletRequest - request. Expected javax.servlet.http.HttpServletRequest
+     * @return URL object or null if not available
+     */
+    private static Object getRequestUrl(Object httpServletRequest) {
+        try {
+            if (Log.checkIfLog(Log.LEVEL_DEBUG))
+                Log.debug("getRequestUrl called with httpServletRequest class: " + httpServletRequest.getClass().getName() );
+
+            // Here we can't just do httpServletRequest.getQueryString() because class location is unknown and we will end up
+            // with java.lang.NoClassDefFoundError. So we use method handle resolved once per request class
+
+            MethodHandle getRequestURLMethod = getRequestURL.find( httpServletRequest );
+            if (getRequestURLMethod!=null) {
+                Object url = getRequestURLMethod.invokeExact(httpServletRequest);
+                if (Log.checkIfLog(Log.LEVEL_DEBUG))
+                    Log.debug("getRequestUrl found caller url: " + url );
+                return url;
+            }
+            else {
+                Log.warn("Failed to find method for HttpRequest");
             }
+
+        } catch (Throwable ex) {
+            Log.warn("Unable to enrich profile name due an error: " + ex.getMessage(), ex);
         }
+        return null;
+    }
 
-        output.println(str);
+    // endsWith for StringBuffer/StringBuilder without converting it to String
+    private static boolean endsWith(CharSequence str, String suffix) {
+        int off = str.length() - suffix.length();
+        if (off < 0)
+            return false;
+        for (int i = 0; i < suffix.length(); i++) {
+            if (str.charAt(off + i) != suffix.charAt(i))
+                return false;
+        }
+        return true;
+    }
 
-        // close if it is file
-        if (output != System.err)
-            output.close();
+    private static void printResultStr(String str) {
+        ResultWriter writer = resultWriter;
+        if (writer != null)
+            writer.write(str);
+        else
+            System.err.println(str);
     }
 }
\ No newline at end of file
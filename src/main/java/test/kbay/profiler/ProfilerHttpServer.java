@@ -0,0 +1,163 @@
+package test.kbay.profiler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import test.kbay.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Built-in HTTP server (httpPort:, httpHost:) with the same pages as the dispatcher: results and JSON results on
+ * a path that ends with 'profiler', OpenMetrics on metricsPath. Requests run on its own small executor,
+ * application threads are not used. All threads are daemons, the server doesn't keep JVM running.
+ */
+final class ProfilerHttpServer implements HttpHandler {
+    private static final int THREADS = 2;
+
+    private final HttpServer      server;
+    private final ExecutorService executor;
+    private final String          metricsPath;
+
+    /**
+     * Start the server
+     * @param host        - address to bind, host name or IP
+     * @param port        - port, 0 for any free port
+     * @param metricsPath - path of OpenMetrics page
+     * @throws IOException if port can't be bound
+     */
+    ProfilerHttpServer(String host, int port, String metricsPath) throws IOException {
+        this.metricsPath = metricsPath;
+        final AtomicInteger threadNum = new AtomicInteger();
+        // Extra requests wait in the queue. Pages are cheap, rejecting would break the server dispatcher
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "profiler-http-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/", this);
+        server.setExecutor(executor);
+
+        // Dispatcher thread inherits daemon flag from the thread that starts the server
+        Thread starter = new Thread(server::start, "profiler-http-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return bound address and port
+     */
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * @return bound port
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Only GET is supported");
+            }
+            else if (path.endsWith(metricsPath)) {
+                exchange.getResponseHeaders().set("Content-Type", OpenMetrics.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, 0);
+                try (PrintWriter writer = getWriter(exchange)) {
+                    OpenMetrics.write(writer);
+                }
+            }
+            else if (path.endsWith("profiler")) {
+                String query = exchange.getRequestURI().getRawQuery();
+                if ("json".equals(getParameter(query, "format")))
+                    handleJson(exchange, query);
+                else {
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=UTF-8");
+                    exchange.sendResponseHeaders(200, 0);
+                    try (PrintWriter writer = getWriter(exchange)) {
+                        ProfilerEngine.onPrintProfilingResults(writer);
+                    }
+                }
+            }
+            else {
+                sendError(exchange, 404, "Not found. Use <any path>/profiler or " + metricsPath);
+            }
+        }
+        catch (Throwable ex) {
+            Log.error("Profiler HTTP server failed to process " + exchange.getRequestURI(), ex);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void handleJson(HttpExchange exchange, String query) throws IOException {
+        JsonResults.Query params = new JsonResults.Query(getParameter(query, "limit"), getParameter(query, "since"),
+                getParameter(query, "method"));
+        exchange.getResponseHeaders().set("Content-Type", JsonResults.CONTENT_TYPE);
+        exchange.sendResponseHeaders(params.error == null ? 200 : 400, 0);
+        try (PrintWriter writer = getWriter(exchange)) {
+            if (params.error != null)
+                params.writeError(writer);
+            else
+                JsonResults.write(writer, ProfilerEngine.getHistory(), params.limit, params.since, params.method);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    // Response length is unknown, body is sent in chunks
+    private static PrintWriter getWriter(HttpExchange exchange) {
+        return new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param query - raw query string. Example: format=json&limit=10
+     * @param name  - parameter name
+     * @return decoded value of the first parameter with the name or null
+     */
+    static String getParameter(String query, String name) throws UnsupportedEncodingException {
+        if (query == null)
+            return null;
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            String key = idx < 0 ? param : param.substring(0, idx);
+            if (name.equals(URLDecoder.decode(key, "UTF-8")))
+                return idx < 0 ? "" : URLDecoder.decode(param.substring(idx + 1), "UTF-8");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,274 @@
+package test.kbay.profiler;
+
+import test.kbay.util.Log;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer for the result file. Request threads only put finished contexts into the bounded queue,
+ * single writer thread formats them in batches and writes into the file channel that is open all the time.
+ *
+ * When queue is full, record is dropped or caller is blocked. It depends on the config.
+ *
+ * Binary format: contexts are encoded right into the output buffer, see BinaryResultFormat.
+ *
+ * A record that fails is dropped alone. If a write of the buffer fails, its records are dropped and binary
+ * format starts a new session, later records don't refer to methods of the lost dictionary.
+ */
+final class ResultWriter implements Runnable {
+    private static final int  BATCH_SIZE = 512;
+    private static final int  BUFFER_SIZE = 256 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    // Records: ProfileContext or already formatted String
+    private final ArrayBlockingQueue<Object> queue;
+    private final boolean dropOnFull;
+    private final boolean shortOutput;
+    private final boolean binary;
+
+    // Binary format session: methods that are in the dictionary and start time of the last record.
+    // Writer thread only
+    private final BitSet writtenMethods = new BitSet();
+    private long prevStart;
+    private int  buffered;     // records in the buffer
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Open file and start the writer thread
+     * @param fileName    - result file. Data is appended
+     * @param queueLen    - max number of records waiting for writing, at least 1
+     * @param dropOnFull  - drop records if queue is full, otherwise caller will wait
+     * @param shortOutput - text result format
+     * @param binary      - binary result format
+     * @throws IOException if file can't be open
+     */
+    ResultWriter(String fileName, int queueLen, boolean dropOnFull, boolean shortOutput, boolean binary) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(queueLen);
+        this.dropOnFull = dropOnFull;
+        this.shortOutput = shortOutput;
+        this.binary = binary;
+        channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        if (binary)
+            startSession();
+
+        thread = new Thread(this, "profiler-result-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue finished context for writing. Called from request threads.
+     */
+    void write(ProfileContext context) {
+        enqueue(context);
+    }
+
+    /**
+     * Queue text for writing
+     */
+    void write(String str) {
+        enqueue(str);
+    }
+
+    /**
+     * Stop the writer. Records that are in the queue will be written, later records are dropped.
+     */
+    void close() {
+        running = false;
+        try {
+            thread.join(FLUSH_INTERVAL_MS * 5);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (dropped.get() > 0)
+            Log.warn("Result writer dropped " + dropped.get() + " records because queue was full or write failed");
+    }
+
+    @Override
+    public void run() {
+        List<Object> batch = new ArrayList<>(BATCH_SIZE);
+        long lastFlush = System.currentTimeMillis();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Object rec = queue.poll(FLUSH_INTERVAL_MS / 4, TimeUnit.MILLISECONDS);
+                if (rec != null) {
+                    batch.add(rec);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (Object r : batch)
+                        appendRecord(r);
+                    batch.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (rec == null || now - lastFlush >= FLUSH_INTERVAL_MS) {
+                    flush();
+                    lastFlush = now;
+                }
+            }
+            catch (InterruptedException ex) {
+                // Keep going, stop is controlled by running flag
+            }
+            catch (Throwable ex) {
+                Log.error("Result writer failed to write results", ex);
+                batch.clear();
+            }
+        }
+
+        flush();
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            Log.error("Result writer failed to close result file", ex);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private void enqueue(Object rec) {
+        // Writer is closed, nobody will take the record. Caller must not wait
+        if (!running) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (dropOnFull) {
+            if (!queue.offer(rec))
+                dropped.incrementAndGet();
+            return;
+        }
+
+        try {
+            // Waiting callers are released by close()
+            while (!queue.offer(rec, FLUSH_INTERVAL_MS / 4, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Failed record is dropped, records that are in the buffer already are kept
+    private void appendRecord(Object rec) {
+        try {
+            if (binary)
+                appendBinary(rec);
+            else
+                append(rec instanceof ProfileContext ? ((ProfileContext) rec).getResultStr(shortOutput) : rec.toString());
+        }
+        catch (Throwable ex) {
+            Log.error("Result writer failed to write a record", ex);
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Session header, file can have sessions of previous runs. Method dictionary and time base start over
+    private void startSession() {
+        writtenMethods.clear();
+        prevStart = System.currentTimeMillis();
+        buffer.put(BinaryResultFormat.MAGIC).put(BinaryResultFormat.VERSION).putLong(prevStart);
+    }
+
+    private void append(String str) throws IOException {
+        byte[] bytes = (str + "\n").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining())
+            flush();
+
+        if (bytes.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(bytes));
+            return;
+        }
+        buffer.put(bytes);
+        buffered++;
+    }
+
+    private void appendBinary(Object rec) {
+        // Record is encoded right into the buffer. If it doesn't fit, the buffer is flushed and it is encoded again
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int pos = buffer.position();
+            try {
+                if (rec instanceof ProfileContext) {
+                    ProfileContext context = (ProfileContext) rec;
+                    boolean newMethod = !writtenMethods.get(context.method.id);
+                    if (newMethod) {
+                        buffer.put(BinaryResultFormat.METHOD);
+                        BinaryResultFormat.putVarLong(buffer, context.method.id);
+                        BinaryResultFormat.putString(buffer, context.method.name);
+                    }
+                    context.putBinary(buffer, prevStart);
+                    if (newMethod)
+                        writtenMethods.set(context.method.id);
+                    prevStart = context.startTime;
+                }
+                else {
+                    buffer.put(BinaryResultFormat.TEXT);
+                    BinaryResultFormat.putString(buffer, rec.toString());
+                }
+                buffered++;
+                return;
+            }
+            catch (BufferOverflowException ex) {
+                buffer.position(pos);
+                flush();
+            }
+            catch (RuntimeException ex) {
+                // Part of the record is not written
+                buffer.position(pos);
+                throw ex;
+            }
+        }
+        Log.error("Result writer: record doesn't fit into the buffer, skipped");
+        dropped.incrementAndGet();
+    }
+
+    // Records of a failed write are lost, they are counted as dropped
+    private void flush() {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        boolean lost = false;
+        try {
+            writeFully(buffer);
+        }
+        catch (IOException ex) {
+            Log.error("Result writer failed to write " + buffered + " records", ex);
+            dropped.addAndGet(buffered);
+            lost = true;
+        }
+        buffer.clear();
+        buffered = 0;
+        if (lost && binary)
+            startSession();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+}
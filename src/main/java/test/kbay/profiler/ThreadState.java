@@ -0,0 +1,86 @@
+package test.kbay.profiler;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per thread profiler state. Only owning thread reads and writes it, so plain fields are fine.
+ *
+ * State lives in a ThreadLocal, so it follows a virtual thread when it moves between carrier threads
+ * and goes away with the thread. There are no global per thread entries. Virtual threads come by
+ * millions, so the state is small and the stack is created by the first profiled call only.
+ */
+final class ThreadState {
+    // Stripe for global counters. Random, so thread creation doesn't update a shared counter.
+    final int stripe = ThreadLocalRandom.current().nextInt();
+
+    // Allocation accumulators for the thread. They are never reset, contexts
+    // keep values at start and calculate the difference at finish.
+    long objs;
+    long mem;
+
+    // Allocation sampling mode. Number of samples behind estimated objs and mem
+    long objSamples;
+    long memSamples;
+    // Allocation sampling mode. Part of objs that is counted exactly by constructors, not sampled
+    long exactObjs;
+    // Bytes to allocate before the next sample. Sample is taken when it goes to 0 or below
+    long bytesUntilSample;
+
+    // Sums of ProfilerEngine.allCounters, contexts of the thread read them here at start and finish
+    final long[] allCounters = new long[ProfilerEngine.ALL_FIELDS];
+
+    // Stack of contexts for nested profiled calls. Array is reused between calls and grows if needed.
+    private ProfileContext[] stack;
+    private int depth;
+
+    // Time and memory spent in agent hooks by the thread. Updated in overhead:true mode only
+    long overheadNanos;
+    long overheadBytes;
+
+    // Last type id the allocation hook looked up. Hook passes the same String instance for an allocation
+    // site, so it is compared by reference. Null if there was no lookup yet
+    String  lastType;
+    boolean lastTypeArray;
+    int     lastTypeId;
+
+    // Context of the request the thread runs an async task for. Null if the thread is not attached
+    ProfileContext attached;
+
+    void push(ProfileContext context) {
+        if (stack == null)
+            stack = new ProfileContext[4];
+        else if (depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = context;
+    }
+
+    /**
+     * @return top context or null if stack is empty. Context stays in the stack
+     */
+    ProfileContext peek() {
+        return depth == 0 ? null : stack[depth - 1];
+    }
+
+    /**
+     * @return true if the context is in the stack
+     */
+    boolean contains(ProfileContext context) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (stack[i] == context)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return top context or null if stack is empty
+     */
+    ProfileContext pop() {
+        if (depth == 0)
+            return null;
+        ProfileContext context = stack[--depth];
+        stack[depth] = null; // don't keep finished context
+        return context;
+    }
+}
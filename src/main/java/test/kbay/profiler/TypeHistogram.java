@@ -0,0 +1,115 @@
+package test.kbay.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Allocations per type: type id -> objects count and bytes.
+ * Open addressing with linear probing on primitive arrays. Update doesn't allocate unless
+ * a new type makes the table grow. Number of types is limited, the rest go to TypeRegistry.OTHER.
+ *
+ * Not thread safe. Context histogram is updated by the thread context was created for.
+ */
+final class TypeHistogram {
+    static final int MAX_TYPES = 256;
+
+    private int[]  keys;
+    private long[] counts;
+    private long[] bytes;
+    private int    size;
+
+    TypeHistogram() {
+        alloc(16);
+    }
+
+    /**
+     * @param type  - type id from TypeRegistry
+     * @param count - number of objects
+     * @param mem   - bytes
+     */
+    void add(int type, long count, long mem) {
+        int idx = slot(type);
+        if (keys[idx] == 0) {
+            if (size >= MAX_TYPES && type != TypeRegistry.OTHER) {
+                add(TypeRegistry.OTHER, count, mem);
+                return;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                idx = slot(type);
+            }
+            keys[idx] = type;
+            size++;
+        }
+        counts[idx] += count;
+        bytes[idx] += mem;
+    }
+
+    /**
+     * Add all values from another histogram
+     */
+    void merge(TypeHistogram other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0)
+                add(other.keys[i], other.counts[i], other.bytes[i]);
+        }
+    }
+
+    /**
+     * Top types by bytes.
+     * @param n        - number of types
+     * @param shortStr - short format: type=count/bytes separated by ','
+     * @return printed types
+     */
+    String getTopStr(int n, boolean shortStr) {
+        Integer[] idx = new Integer[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0)
+                idx[j++] = i;
+        }
+        Arrays.sort(idx, (a, b) -> Long.compare(bytes[b], bytes[a]));
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(n, idx.length); i++) {
+            if (i > 0)
+                sb.append(shortStr ? "," : ", ");
+            int k = idx[i];
+            if (shortStr)
+                sb.append(TypeRegistry.getName(keys[k])).append('=').append(counts[k]).append('/').append(bytes[k]);
+            else
+                sb.append(TypeRegistry.getName(keys[k])).append(": ").append(counts[k]).append(" objects, ").append(bytes[k]).append(" bytes");
+        }
+        return sb.toString();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private int slot(int type) {
+        int mask = keys.length - 1;
+        int idx = (type * 0x9E3779B9) >>> 16 & mask;
+        while (keys[idx] != 0 && keys[idx] != type)
+            idx = (idx + 1) & mask;
+        return idx;
+    }
+
+    private void alloc(int capacity) {
+        keys = new int[capacity];
+        counts = new long[capacity];
+        bytes = new long[capacity];
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+        long[] oldBytes = bytes;
+        alloc(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int idx = slot(oldKeys[i]);
+                keys[idx] = oldKeys[i];
+                counts[idx] = oldCounts[i];
+                bytes[idx] = oldBytes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package test.kbay.profiler;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Allocated types interned to int ids. Type is registered once, histograms keep int ids only.
+ * Id 0 is never used, it marks empty slot in histograms. Number of types is limited,
+ * types registered after the limit share OTHER id.
+ */
+final class TypeRegistry {
+    static final int MAX_TYPES = 1 << 16;
+
+    // Key: type in path notation. Example: java/lang/String
+    private static final ConcurrentHashMap<String, Integer> objectIds = new ConcurrentHashMap<>();
+    // Key: array element type. Example: char
+    private static final ConcurrentHashMap<String, Integer> arrayIds = new ConcurrentHashMap<>();
+    // Index: type id. Grows by doubling, entries below size are never changed
+    private static volatile String[] names = new String[16];
+    // Number of used ids. Written after the name, so readers below size see it
+    private static volatile int size = 1;
+
+    // Types that don't fit into histogram or registry are counted here
+    static final int OTHER = register("[other types]", false, objectIds);
+
+    /**
+     * @param type  - type in path notation. Element type for arrays.
+     * @param array - true for array allocation
+     * @return type id
+     */
+    static int getId(String type, boolean array) {
+        ConcurrentHashMap<String, Integer> ids = array ? arrayIds : objectIds;
+        Integer id = ids.get(type);
+        if (id != null)
+            return id;
+        if (size >= MAX_TYPES)
+            return OTHER;
+        return register(type, array, ids);
+    }
+
+    /**
+     * @return type name for id. Example: java.lang.String or char[]
+     */
+    static String getName(int id) {
+        int sz = size;
+        return id > 0 && id < sz ? names[id] : "[unknown]";
+    }
+
+    private static synchronized int register(String type, boolean array, ConcurrentHashMap<String, Integer> ids) {
+        Integer id = ids.get(type);
+        if (id != null)
+            return id;
+        int sz = size;
+        if (sz >= MAX_TYPES)
+            return OTHER;
+
+        String[] n = names;
+        if (sz == n.length) {
+            n = Arrays.copyOf(n, n.length * 2);
+            names = n;
+        }
+        n[sz] = type.replace('/', '.') + (array ? "[]" : "");
+        size = sz + 1;
+        ids.put(type, sz);
+        return sz;
+    }
+}
@@ -0,0 +1,65 @@
+package test.kbay.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for data that is shared through plain memory, for example a memory mapped file,
+ * where volatile fields can't order the accesses. Java 8 has no public fence API: VarHandle fences
+ * are used on Java 9+, Unsafe fences of the same meaning on Java 8. Both are found at runtime,
+ * calls through static final handles are inlined by JIT.
+ */
+public final class Fences {
+    private static final MethodHandle storeFence = find("releaseFence", "storeFence");
+    private static final MethodHandle loadFence = find("acquireFence", "loadFence");
+
+    private Fences() {
+    }
+
+    /**
+     * Loads and stores before the fence are not reordered with stores after the fence
+     */
+    public static void storeFence() {
+        try {
+            storeFence.invokeExact();
+        }
+        catch (Throwable ex) {
+            throw new IllegalStateException("Store fence failed", ex);
+        }
+    }
+
+    /**
+     * Loads before the fence are not reordered with loads and stores after the fence
+     */
+    public static void loadFence() {
+        try {
+            loadFence.invokeExact();
+        }
+        catch (Throwable ex) {
+            throw new IllegalStateException("Load fence failed", ex);
+        }
+    }
+
+    // Static VarHandle fence, or the Unsafe one bound to the instance
+    private static MethodHandle find(String varHandleFence, String unsafeFence) {
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.VarHandle"), varHandleFence, type);
+        }
+        catch (ReflectiveOperationException ex) {
+            // Java 8
+        }
+
+        try {
+            Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeType.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeType, unsafeFence, type).bindTo(field.get(null));
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+}
@@ -18,8 +18,8 @@ import java.util.Date;
  * Profiler need to use custom simple logger becase we want to minimize number of included jars.
  * Logs need to be separated from app that we profile.
  *
- * Logs can go into the file or to the console. Logger not optimized for performance.
- * It is fine since it is prototyping.
+ * Logs can go into the file or to the console. File logs are written asynchronously by LogAppender,
+ * so logging on a request thread costs a slot in the ring buffer, not a file write.
  *
  * Default output: to console.
  * Default log level: DEBUG
@@ -36,6 +36,8 @@ public class Log
 
     // Logs will go to this file or will be printed on the console
     private static Path logFN = null;
+    // Asynchronous writer for logFN. Null for console or after shutdown
+    private static volatile LogAppender appender = null;
 
     /**
      * setLogFileName - set logging target: file or console
@@ -45,6 +47,7 @@ public class Log
     public static void setLogConfig(String name, String level) {
         if (name != null) {
             Path fn = Paths.get(name);
+            shutdown(); // previous appender
 
             try {
                 Files.deleteIfExists(fn);
@@ -54,6 +57,13 @@ public class Log
                 return;
             }
             logFN = fn;
+
+            try {
+                appender = new LogAppender(fn);
+            } catch (Exception ex) {
+                // Non fatal error. Logs will be written synchronously
+                System.err.println("Unable to start log appender for file " + fn + " Error:" + ex.getMessage());
+            }
         }
 
         if (level != null) {
@@ -76,6 +86,17 @@ public class Log
         info("setLogConfig to file " + logFN + " with log level " + logLevel);
     }
 
+    /**
+     * Write pending logs and stop the appender. Logs after shutdown are written synchronously.
+     */
+    public static void shutdown() {
+        LogAppender app = appender;
+        if (app != null) {
+            appender = null;
+            app.close();
+        }
+    }
+
     /**
      * checkIfLog usefull to prevent building strings for logging.
      * @param level - LEVEL_XXXX value
@@ -125,6 +146,10 @@ public class Log
     /////////////////////////////////////////////////////////////////////////////////////////////////////
 
     private static void doLog(String msg, String level, Throwable ex) {
+        LogAppender app = appender;
+        if (app != null && app.append(level, msg, ex))
+            return;
+
         msg = Time.getCurrentTimeAsString() + " | " + level + " | " + msg;
         if (logFN==null) {
             System.err.println(msg);
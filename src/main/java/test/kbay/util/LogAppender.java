@@ -0,0 +1,190 @@
+package test.kbay.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous file appender for Log. Callers put messages into the ring buffer with preallocated slots,
+ * dedicated flusher thread formats them with reusable buffers and writes into the file channel that is open
+ * all the time.
+ *
+ * If ring buffer is full, caller waits. Logs are not dropped.
+ *
+ * Every claimed slot is published, either with the message or as skipped. Flusher waits for each slot in
+ * order, a slot is never freed before its producer is done with it.
+ */
+class LogAppender implements Runnable {
+    private static final int  RING_SIZE = 4096; // must be power of 2
+    private static final int  BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long FULL_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // Ring buffer slot. seq is written last, it publishes the slot for the flusher
+    private static final class Entry {
+        volatile long seq = -1;
+        long      time;
+        String    level;
+        String    msg;
+        Throwable ex;
+        boolean   skip;     // claimed, but the message went another way
+    }
+
+    private final Entry[] ring = new Entry[RING_SIZE];
+    private final AtomicLong claimed = new AtomicLong(0); // next sequence for producers
+    private volatile long consumed = 0;                    // next sequence for the flusher
+
+    private final FileChannel channel;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Flusher thread only
+    private final Time.CachedFormat timeFormat = new Time.CachedFormat();
+    private final StringBuilder line = new StringBuilder(256);
+    private char[] chars = new char[256];
+    private CharBuffer charBuf = CharBuffer.wrap(chars);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Open the file and start the flusher thread
+     * @param fn - log file. Data is appended
+     * @throws IOException if file can't be open
+     */
+    LogAppender(Path fn) throws IOException {
+        for (int i = 0; i < RING_SIZE; i++)
+            ring[i] = new Entry();
+
+        channel = FileChannel.open(fn, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        thread = new Thread(this, "profiler-log-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Put message into the ring buffer.
+     * @return false if appender is closed, caller has to log the message another way
+     */
+    boolean append(String level, String msg, Throwable ex) {
+        if (!running)
+            return false;
+
+        long seq = claimed.getAndIncrement();
+        // Wait until flusher frees the slot
+        while (seq - consumed >= RING_SIZE) {
+            if (!thread.isAlive())
+                return false;
+            LockSupport.parkNanos(FULL_WAIT_NS);
+        }
+
+        Entry e = ring[(int) (seq & (RING_SIZE - 1))];
+        // close() could come after the first check. Flusher may be gone already, the slot is skipped
+        boolean accepted = running;
+        try {
+            e.skip = !accepted;
+            e.time = System.currentTimeMillis();
+            e.level = level;
+            e.msg = msg;
+            e.ex = ex;
+        }
+        finally {
+            // Published whatever happens, flusher waits for every claimed slot
+            e.seq = seq;
+        }
+        return accepted;
+    }
+
+    /**
+     * Stop the flusher. Published messages will be written.
+     */
+    void close() {
+        running = false;
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long next = 0;
+        while (true) {
+            Entry e = ring[(int) (next & (RING_SIZE - 1))];
+            if (e.seq != next) {
+                // Nothing to format. Good time to write what we have
+                flush();
+                // Claimed slot is published by its producer sooner or later, it is waited for even on close
+                if (!running && next == claimed.get())
+                    break;
+                LockSupport.parkNanos(IDLE_WAIT_NS);
+                continue;
+            }
+
+            if (!e.skip)
+                format(e);
+            e.msg = null;
+            e.ex = null;
+            consumed = ++next;
+        }
+
+        flush();
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to close log file. Error:" + ex.getMessage());
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private void format(Entry e) {
+        line.setLength(0);
+        line.append(timeFormat.format(e.time)).append(" | ").append(e.level).append(" | ").append(e.msg);
+        if (e.ex != null)
+            line.append( Print.printExceptionStack(e.ex) );
+        line.append('\n');
+
+        int len = line.length();
+        if (len > chars.length) {
+            chars = new char[Math.max(len, chars.length * 2)];
+            charBuf = CharBuffer.wrap(chars);
+        }
+        line.getChars(0, len, chars, 0);
+        charBuf.clear().limit(len);
+
+        encoder.reset();
+        while (true) {
+            CoderResult res = encoder.encode(charBuf, buffer, true);
+            if (!res.isOverflow())
+                break;
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        catch (IOException ex) {
+            // Non fatal error. Lines are lost, but app must go on
+            System.err.println("Unable to write log to the file. Error:" + ex.getMessage());
+        }
+        buffer.clear();
+    }
+}
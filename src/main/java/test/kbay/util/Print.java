@@ -22,6 +22,23 @@ public class Print {
         return sb.toString();
     }
 
+    /**
+     * Append string as JSON string literal with quotes
+     */
+    public static StringBuilder appendJsonString( StringBuilder sb, String str ) {
+        sb.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"');
+    }
+
     public static String printExceptionStack(Throwable ex)
     {
         final StringWriter sw = new StringWriter();
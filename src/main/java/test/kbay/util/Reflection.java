@@ -1,19 +1,79 @@
 package test.kbay.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 /**
  * Java reflection helper methods. Since Agent wasn't build with jars that it run in, we
  * have to use reflection.
  */
 public class Reflection {
-    public static Method findMethodByName( Object obj, String methodName ) {
-        Class objClass = obj.getClass();
-        Method[] methods = objClass.getMethods();
-        for (Method m : methods) {
-            if ( methodName.equals(m.getName()) )
+
+    /**
+     * Public method resolved once per class. Keyed with ClassValue, so cached handles don't
+     * prevent classloaders of web apps from unloading.
+     *
+     * Handle type is erased: all references are Object, primitives stay as they are.
+     * Example: getRequestURL has type (Object)Object, setStatus has type (Object,int)void
+     */
+    public static class MethodCache extends ClassValue<MethodHandle> {
+        private final String methodName;
+        private final Class<?>[] paramTypes;
+
+        public MethodCache(String methodName, Class<?>... paramTypes) {
+            this.methodName = methodName;
+            this.paramTypes = paramTypes;
+        }
+
+        /**
+         * @param obj - object to find method for
+         * @return method handle or null if class doesn't have the method
+         */
+        public MethodHandle find(Object obj) {
+            return get(obj.getClass());
+        }
+
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                Method m = findPublicMethod(type, methodName, paramTypes);
+                if (m == null)
+                    return null;
+                MethodHandle handle = MethodHandles.publicLookup().unreflect(m);
+                return handle.asType(handle.type().erase());
+            }
+            catch (Exception ex) {
+                Log.warn("Unable to resolve method " + methodName + " for class " + type.getName(), ex);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Find public method that is accessible from outside. Implementation classes are often not public,
+     * in this case method is taken from public interface or super class.
+     * @return method or null if not found
+     */
+    public static Method findPublicMethod( Class<?> type, String methodName, Class<?>... paramTypes ) {
+        if (type == null)
+            return null;
+
+        if (Modifier.isPublic(type.getModifiers())) {
+            try {
+                return type.getMethod(methodName, paramTypes);
+            }
+            catch (NoSuchMethodException ex) {
+                return null;
+            }
+        }
+
+        for (Class<?> intf : type.getInterfaces()) {
+            Method m = findPublicMethod(intf, methodName, paramTypes);
+            if (m != null)
                 return m;
         }
-        return null;
+        return findPublicMethod(type.getSuperclass(), methodName, paramTypes);
     }
 }
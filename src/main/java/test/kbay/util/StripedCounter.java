@@ -0,0 +1,96 @@
+package test.kbay.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counter that is updated from many threads. Similar to LongAdder, but caller
+ * provides the stripe, so there is no hashing or contention detection on update.
+ * Every stripe sits on its own cache lines to avoid false sharing.
+ *
+ * Counter can have several fields that are updated by the same threads. Fields of a stripe share its
+ * cache lines, so sum(long[]) reads all of them in one pass over the stripes.
+ *
+ * sum() is not an atomic snapshot. It is fine for start/finish differences.
+ */
+public class StripedCounter {
+    // 16 longs = 128 bytes between stripes. Covers adjacent cache line prefetch as well.
+    private static final int PAD = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    private final int fields;
+    private final int stride;   // distance between stripes
+
+    /**
+     * Create counter with enough stripes for number of CPUs on the host
+     */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes - minimum number of stripes. Will be rounded up to power of 2.
+     */
+    public StripedCounter(int stripes) {
+        this(stripes, 1);
+    }
+
+    /**
+     * @param stripes - minimum number of stripes. Will be rounded up to power of 2.
+     * @param fields  - number of fields, see add(int, int, long)
+     */
+    public StripedCounter(int stripes, int fields) {
+        int sz = 1;
+        while (sz < stripes)
+            sz <<= 1;
+        mask = sz - 1;
+        this.fields = fields;
+        // Padding after the last field of a stripe is the same as for a single field
+        stride = PAD + fields - 1;
+        // first and last stripes need padding too
+        cells = new AtomicLongArray((sz + 1) * stride + PAD);
+    }
+
+    /**
+     * Add value to the counter
+     * @param stripe - any int. Stable value per thread gives the best result.
+     * @param x      - value to add
+     */
+    public void add(int stripe, long x) {
+        add(stripe, 0, x);
+    }
+
+    /**
+     * Add value to a field of the counter
+     * @param stripe - any int. Stable value per thread gives the best result.
+     * @param field  - field, 0 to fields-1
+     * @param x      - value to add
+     */
+    public void add(int stripe, int field, long x) {
+        cells.getAndAdd(((stripe & mask) + 1) * stride + field, x);
+    }
+
+    /**
+     * @return current sum of all stripes
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++)
+            sum += cells.get((i + 1) * stride);
+        return sum;
+    }
+
+    /**
+     * Sums of all fields, one pass over the stripes
+     * @param res - array for the sums, at least fields long
+     */
+    public void sum(long[] res) {
+        for (int f = 0; f < fields; f++)
+            res[f] = 0;
+        for (int i = 0; i <= mask; i++) {
+            int base = (i + 1) * stride;
+            for (int f = 0; f < fields; f++)
+                res[f] += cells.get(base + f);
+        }
+    }
+}
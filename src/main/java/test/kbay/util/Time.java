@@ -8,13 +8,64 @@ import java.util.Date;
  * Time related tools
  */
 public class Time {
-    static final private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    // SimpleDateFormat is not thread safe
+    static final private ThreadLocal<DateFormat> dateFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        }
+    };
 
     /**
      * @return formatted current time
      */
     public static String getCurrentTimeAsString() {
-        return dateFormat.format(new Date());
+        return getTimeAsString(System.currentTimeMillis());
     }
 
+    /**
+     * @param timeMs - time in ms, System.currentTimeMillis() format
+     * @return formatted time
+     */
+    public static String getTimeAsString(long timeMs) {
+        return dateFormat.get().format(new Date(timeMs));
+    }
+
+    /**
+     * Duration in ms with microsecond precision. Example: 12.345
+     * @param nanos - duration in ns, System.nanoTime() difference
+     * @return formatted duration
+     */
+    public static String getNanosAsMsString(long nanos) {
+        long us = nanos / 1000;
+        long frac = Math.abs(us % 1000);
+        StringBuilder sb = new StringBuilder(16);
+        if (us < 0 && us > -1000)
+            sb.append('-');
+        sb.append(us / 1000).append('.');
+        if (frac < 100)
+            sb.append('0');
+        if (frac < 10)
+            sb.append('0');
+        return sb.append(frac).toString();
+    }
+
+    /**
+     * Formatter that keeps the last formatted second. Logs get many messages per second,
+     * so date formatting is done once per second. Not thread safe.
+     */
+    public static class CachedFormat {
+        private final DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        private long   sec = Long.MIN_VALUE;
+        private String str;
+
+        public String format(long timeMs) {
+            long s = timeMs / 1000;
+            if (s != sec) {
+                str = format.format(new Date(timeMs));
+                sec = s;
+            }
+            return str;
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package app2test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * App that hands off work to executors for profiler testing
+ * Every task creates a TestItem, handler creates one more in its own thread.
+ * Periodic task and queue removal in the handler are not hand offs, they create no items.
+ */
+public class AsyncTestApp {
+    private static final List<Object> items = new ArrayList<>();
+    private static final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final ThreadPoolExecutor queued = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+
+    // Task that waits in the queue of the busy 'queued' executor, handler removes it
+    private static final Runnable waiting = () -> addItem();
+    private static boolean removed;
+
+    public void handler_async() throws Exception {
+        addItem();
+
+        Future<?> f1 = executor.submit(() -> addItem());
+        Future<Object> f2 = executor.submit(() -> { addItem(); return null; });
+        CompletableFuture<Object> f3 = CompletableFuture.supplyAsync(() -> { addItem(); return null; }, executor);
+        executor.invokeAll(Collections.singletonList(() -> { addItem(); return null; }));
+
+        f1.get();
+        f2.get();
+        f3.get();
+
+        // Periodic task is not counted for the call
+        CountDownLatch runs = new CountDownLatch(3);
+        ScheduledFuture<?> periodic = scheduler.scheduleAtFixedRate(() -> runs.countDown(), 0, 5, TimeUnit.MILLISECONDS);
+        runs.await();
+        periodic.cancel(false);
+
+        // Queue must get the task it has
+        removed = queued.remove(waiting);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void addItem() {
+        synchronized (items) {
+            items.add(new TestItem());
+        }
+    }
+
+    public static void main(String [] args) {
+        try {
+            // Single worker is busy, so the task waits in the queue
+            CountDownLatch release = new CountDownLatch(1);
+            queued.execute(() -> await(release));
+            queued.execute(waiting);
+
+            new AsyncTestApp().handler_async();
+            release.countDown();
+            System.err.println("Task removed: " + removed);
+            // Not profiled, counted in all threads only
+            executor.submit(() -> addItem()).get();
+            executor.shutdown();
+            scheduler.shutdown();
+            queued.shutdown();
+
+            System.err.println("Done");
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -33,6 +33,9 @@ public class TestApp {
                     case 3:
                         handler.handler_0_ex();
                         return;
+                    case 4:
+                        handler.handler_items();
+                        return;
                 }
 
             }
@@ -48,7 +51,7 @@ public class TestApp {
         try {
             ArrayList<Thread> thrs = new ArrayList<>();
 
-            for (int id = 0; id < 4; id++) {
+            for (int id = 0; id < 5; id++) {
                 thrs.add(new TestThread(id));
             }
 
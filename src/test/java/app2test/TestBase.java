@@ -0,0 +1,9 @@
+package app2test;
+
+/**
+ * Base of two application types, frames of TestTransformed merge them
+ */
+public abstract class TestBase {
+
+    public abstract String name();
+}
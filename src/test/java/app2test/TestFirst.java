@@ -0,0 +1,12 @@
+package app2test;
+
+/**
+ * Application type for frame tests, see TestBase
+ */
+public class TestFirst extends TestBase {
+
+    @Override
+    public String name() {
+        return "first";
+    }
+}
@@ -38,6 +38,15 @@ public class TestHandlers {
         doAction();
     }
 
+    // Application objects only, for object tracking by constructors.
+    // Default constructor calls this(int), the object must be counted once
+    public void handler_items() {
+        System.out.println("calling handler_items");
+        synchronized(strs) {
+            strs.add( new TestItem() );
+            strs.add( new TestItem(2) );
+        }
+    }
 
     // some dummy action. Let's create some
     private void doAction() {
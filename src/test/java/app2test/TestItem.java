@@ -0,0 +1,20 @@
+package app2test;
+
+/**
+ * Application type for object tracking by constructors
+ */
+public class TestItem {
+    private final int id;
+
+    public TestItem() {
+        this(0);
+    }
+
+    public TestItem(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+}
@@ -0,0 +1,37 @@
+package app2test;
+
+/**
+ * Class for transformer unit tests. It is instrumented and defined by test class loaders
+ */
+public class TestTransformed {
+
+    public int handle(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("negative " + n);
+        return n * 2;
+    }
+
+    // Own handler of the method, the exception leaves it only for null
+    public int parse(String s) {
+        try {
+            return Integer.parseInt(s);
+        }
+        catch (NumberFormatException ex) {
+            if (s == null)
+                throw ex;
+            return -1;
+        }
+    }
+
+    // Branches merge TestFirst and TestSecond, frame must have TestBase to call name()
+    public String pick(boolean first) {
+        TestBase item = first ? new TestFirst() : new TestSecond();
+        return item.name();
+    }
+
+    // Branches merge types that have only Object in common
+    public String describe(boolean first) {
+        Object item = first ? new TestFirst() : new TestItem();
+        return item.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,64 @@
+package app2test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * App that runs profiled handlers on virtual threads for profiler testing
+ * Handler sleeps between allocations, so virtual thread can continue on another carrier thread.
+ * Virtual threads need Java 21, platform threads are used on older JVMs.
+ */
+public class VirtualThreadApp {
+    private static final List<Object> items = new ArrayList<>();
+
+    public void handler_vt() throws InterruptedException {
+        addItem();
+        Thread.sleep(1);
+        addItem();
+    }
+
+    private static void addItem() {
+        synchronized (items) {
+            items.add(new TestItem());
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.err.println("Using virtual threads");
+            return (ExecutorService) m.invoke(null);
+        }
+        catch (Exception ex) {
+            System.err.println("Virtual threads are not available, using platform threads");
+            return Executors.newFixedThreadPool(16);
+        }
+    }
+
+    public static void main(String [] args) {
+        try {
+            int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+            ExecutorService executor = createExecutor();
+
+            List<Future<?>> res = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                res.add(executor.submit(() -> {
+                    new VirtualThreadApp().handler_vt();
+                    return null;
+                }));
+            }
+            for (Future<?> f : res)
+                f.get();
+            executor.shutdown();
+
+            System.err.println("Done");
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
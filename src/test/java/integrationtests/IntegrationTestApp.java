@@ -23,6 +23,8 @@ public class IntegrationTestApp {
         final int thrMem; // Memory allocated in thread
         final int allObjs; // Total objects created in thread.
         final int allMem; // Total memory allocaed in all threads
+        int asyncTasks; // Tasks submitted to executors
+        int asyncObjs;  // Objects created by the tasks
 
         MethodProfileResult(String methodName, int thrObjs, int thrMem, int allObjs, int allMem) {
             this.methodName = methodName;
@@ -77,6 +79,71 @@ public class IntegrationTestApp {
         testTestAppProfilingWith("app2test.TestHandlers.handler_0_ex", "java.lang.Long,obj2track:java.lang.String", 3);
     }
 
+    // Test object tracking by constructors without allocation hook
+    @Test
+    public void testConstructorTracking() {
+        try {
+            // Only handler_items creates TestItem objects
+            List<String> lns = Exec.executeProfilerWithParams( "=func2prof:app2test.TestHandlers.handler_items,obj2track:app2test.TestItem,memTrack:false,short:true" );
+            List<MethodProfileResult> profRes = parseAgentShortOutput(lns);
+
+            Assert.assertTrue("Expected one result item", profRes!=null && profRes.size() == 1);
+            MethodProfileResult res = profRes.get(0);
+            Assert.assertTrue("In thread objs", res.thrObjs==2 );
+            Assert.assertTrue("All threads objs", res.allObjs==2 );
+            Assert.assertTrue("No memory accounting expected", res.thrMem==0 && res.allMem==0 );
+
+            // Application type is counted by constructor, JDK type by allocation hook. Handler has no Long objects
+            lns = Exec.executeProfilerWithParams( "=func2prof:app2test.TestHandlers.handler_items,obj2track:app2test.TestItem,obj2track:java.lang.Long,short:true" );
+            profRes = parseAgentShortOutput(lns);
+
+            Assert.assertTrue("Expected one result item", profRes!=null && profRes.size() == 1);
+            res = profRes.get(0);
+            Assert.assertTrue("In thread objs", res.thrObjs==2 );
+        }
+        catch (Exception ex) {
+            Assert.fail("testProfiler failed due:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    // Tasks submitted to executors are counted for the submitting call
+    @Test
+    public void testAsyncTasks() {
+        try {
+            List<String> lns = Exec.executeProfilerWithParams( "=func2prof:app2test.AsyncTestApp.handler_async,obj2track:app2test.TestItem,memTrack:false,async:app2test,short:true", "app2test.AsyncTestApp" );
+            List<MethodProfileResult> profRes = parseAgentShortOutput(lns);
+
+            Assert.assertTrue("Expected one result item: " + lns, profRes!=null && profRes.size() == 1);
+            MethodProfileResult res = profRes.get(0);
+            Assert.assertTrue("In thread objs", res.thrObjs==1 );
+            Assert.assertTrue("Async tasks: " + lns, res.asyncTasks==4 && res.asyncObjs==4 );
+            Assert.assertTrue("All threads objs", res.allObjs==5 );
+            // Arguments of remove() and scheduleAtFixedRate() are not wrapped
+            Assert.assertTrue("Expected: queued task is removed: " + lns, equalsTo(lns, "Task removed: true") );
+        }
+        catch (Exception ex) {
+            Assert.fail("testProfiler failed due:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    // Handlers on virtual threads. Every call creates 2 objects, with a sleep in between
+    @Test
+    public void testVirtualThreads() {
+        try {
+            List<String> lns = Exec.executeProfilerWithParams( "=func2prof:app2test.VirtualThreadApp.handler_vt,obj2track:app2test.TestItem,memTrack:false,short:true,hist:100", "app2test.VirtualThreadApp" );
+            List<MethodProfileResult> profRes = parseAgentShortOutput(lns);
+
+            Assert.assertTrue("Expected 100 result items: " + lns, profRes!=null && profRes.size() == 100);
+            for (MethodProfileResult res : profRes) {
+                Assert.assertTrue("In thread objs", res.thrObjs==2 );
+                Assert.assertTrue("All threads objs", res.allObjs>=2 );
+            }
+        }
+        catch (Exception ex) {
+            Assert.fail("testProfiler failed due:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
     // Test if file output works
     @Test
     public void testFilesOutputs() {
@@ -167,13 +234,22 @@ public class IntegrationTestApp {
             if (profShortStr.isEmpty())
                 continue;
             // Example: app2test/TestHandlers.handler_3_ok;2;1176;8;3536
+            // Optional async tasks at the end: ;async=3/3/0
             String [] profRes = profShortStr.split(";");
-            if (profRes.length!=5)
+            if (profRes.length<5 || profRes.length>6)
                 continue;
 
-            res.add( new MethodProfileResult(profRes[0],
+            MethodProfileResult mRes = new MethodProfileResult(profRes[0],
                     Integer.parseInt(profRes[1]), Integer.parseInt(profRes[2]),
-                    Integer.parseInt(profRes[3]), Integer.parseInt(profRes[4])) );
+                    Integer.parseInt(profRes[3]), Integer.parseInt(profRes[4]));
+            if (profRes.length==6) {
+                if (!profRes[5].startsWith("async="))
+                    continue;
+                String [] async = profRes[5].substring(6).split("/");
+                mRes.asyncTasks = Integer.parseInt(async[0]);
+                mRes.asyncObjs = Integer.parseInt(async[1]);
+            }
+            res.add(mRes);
         }
         return res;
     }
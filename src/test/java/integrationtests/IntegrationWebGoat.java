@@ -60,9 +60,11 @@ public class IntegrationWebGoat {
             Assert.assertTrue("Not found file request 1", profileFileResult.get(0).contains("http://localhost:8080/WebGoat/js/goatApp/support/GoatUtils.js") );
             Assert.assertTrue("Not found file request 2", profileFileResult.get(1).contains("http://localhost:8080/WebGoat/login") );
 
-            Assert.assertTrue("Profile url results expected", profileUrlResult.size()==3);
+            // header, 2 calls, then latency section
+            Assert.assertTrue("Profile url results expected", profileUrlResult.size()>=4);
             Assert.assertTrue("Not found url request 1", profileUrlResult.get(1).contains("http://localhost:8080/WebGoat/js/goatApp/support/GoatUtils.js") );
             Assert.assertTrue("Not found url request 2", profileUrlResult.get(2).contains("http://localhost:8080/WebGoat/login") );
+            Assert.assertTrue("Not found latency section", profileUrlResult.get(3).startsWith("Latency per method for ") );
         }
         catch (Exception ex) {
             Assert.fail("testProfiler failed due:\n" + Print.printExceptionStack(ex));
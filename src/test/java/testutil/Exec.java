@@ -26,8 +26,19 @@ public class Exec {
      * @throws ProfException
      */
     public static List<String> executeProfilerWithParams(String params ) throws ProfException {
+        return executeProfilerWithParams(params, "app2test.TestApp");
+    }
+
+    /**
+     * Execute profiler with an app from app2test.
+     * @param params    - profiler argument line
+     * @param mainClass - app main class
+     * @return  err output lines
+     * @throws ProfException
+     */
+    public static List<String> executeProfilerWithParams(String params, String mainClass ) throws ProfException {
         return Exec.execute(30000, new String[] {"java", "-javaagent:lib/java-allocation-instrumenter-3.1.0.jar",  "-javaagent:"+ TestConfig.profilerJarLocation+params,
-                "-cp", "target/test-classes", "app2test.TestApp"}).output;
+                "-cp", "target/test-classes", mainClass}).output;
     }
 
     /**
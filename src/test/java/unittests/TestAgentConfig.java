@@ -41,26 +41,72 @@ public class TestAgentConfig {
 
         }
 
+        { // result queue must have room for a record
+            try {
+                new AgentConfig("resultFile:myres,resultQueue:0");
+                Assert.fail();
+            } catch (ProfException ex) {
+                Assert.assertTrue( "resultQueue case", ex.getMessage().startsWith("Unable to parse config argument: 'resultQueue:0'") && ex.getMessage().contains("expected positive value") );
+            }
+        }
+
+        { // boolean params take true or false only
+            for (String arg : new String[] { "memTrack:yes", "callTree:1", "overhead:on", "short:no" }) {
+                try {
+                    new AgentConfig(arg);
+                    Assert.fail("Expected to be invalid: " + arg);
+                } catch (ProfException ex) {
+                    Assert.assertTrue( "boolean case", ex.getMessage().startsWith("Unable to parse config argument: '" + arg + "'") && ex.getMessage().contains("expected true or false") );
+                }
+            }
+        }
+
+        { // number of printed types can't be negative
+            try {
+                new AgentConfig("topTypes:-1");
+                Assert.fail();
+            } catch (ProfException ex) {
+                Assert.assertTrue( "topTypes case", ex.getMessage().startsWith("Unable to parse config argument: 'topTypes:-1'") && ex.getMessage().contains("expected positive value") );
+            }
+        }
+
         { // happy path with all params
             try {
-                AgentConfig config = new AgentConfig("hist:11,obj2track:java.lang.String,obj2track:java.lang.Number,func2prof:my.test.method,func2prof:my.test.another,dispatch:custom.servlet.doDispatch,logFile:mylog,logLevel:Info,resultFile:myres");
+                AgentConfig config = new AgentConfig("hist:11,allocSample:4096,memTrack:false,topTypes:3,cpuTime:user,callTree:true,treeNodes:200,overhead:true,obj2track:java.lang.String,obj2track:java.lang.Number,func2prof:my.test.method,func2prof:my.test.another,async:my.app,dispatch:custom.servlet.doDispatch,metricsPath:/prof/metrics,httpPort:8090,httpHost:0.0.0.0,logFile:mylog,logLevel:Info,resultFile:myres,resultFormat:binary,metricsFile:mymetrics,metricsInterval:500,resultQueue:100,resultQueueFull:drop");
 
                 String valStr = config.validate();
                 Assert.assertTrue("Validate expected to pass", valStr==null);
 
                 String confVals = config.getParamsValueStr();
                 String expectedConfVals = "hist:11\n" +
+                        "allocSample:4096\n" +
+                        "memTrack:false\n" +
+                        "topTypes:3\n" +
+                        "cpuTime:user\n" +
+                        "callTree:true\n" +
+                        "treeNodes:200\n" +
+                        "overhead:true\n" +
                         "obj2track 2 items:\n" +
                         "  java.lang.String\n" +
                         "  java.lang.Number\n" +
                         "func2prof 2 items:\n" +
                         "  my.test.method\n" +
                         "  my.test.another\n" +
+                        "async 1 items:\n" +
+                        "  my.app\n" +
                         "dispatch 1 items\n" +
                         "  custom.servlet.doDispatch\n" +
+                        "metricsPath:/prof/metrics\n" +
+                        "httpPort:8090\n" +
+                        "httpHost:0.0.0.0\n" +
                         "logFile:mylog\n" +
                         "logLevel:Info\n" +
-                        "resultFile:myres\n";
+                        "resultFile:myres\n" +
+                        "resultFormat:binary\n" +
+                        "metricsFile:mymetrics\n" +
+                        "metricsInterval:500\n" +
+                        "resultQueue:100\n" +
+                        "resultQueueFull:drop\n";
 
                 Assert.assertTrue( "Config get correct values", expectedConfVals.equals(confVals) );
 
@@ -0,0 +1,341 @@
+package unittests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import test.kbay.AgentConfig;
+import test.kbay.AgentFileTransformer;
+import test.kbay.profiler.ProfilerEngine;
+import test.kbay.util.Print;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static unittests.TestProfilerEngine.initProfileEngine;
+
+/**
+ * Unit tests for AgentFileTransformer
+ */
+public class TestAgentFileTransformer {
+    private static final String TARGET = "app2test/TestTransformed";
+
+    // Defines classes from given bytes, everything else comes from the test class loader
+    private static class TestLoader extends ClassLoader {
+        private final List<String> hidden;  // class files that are not found. Example: app2test/TestFirst.class
+
+        TestLoader(String... hidden) {
+            super(TestAgentFileTransformer.class.getClassLoader());
+            this.hidden = Arrays.asList(hidden);
+        }
+
+        Class<?> define(byte[] bytes) {
+            return define(TARGET, bytes);
+        }
+
+        Class<?> define(String className, byte[] bytes) {
+            return defineClass(className.replace('/', '.'), bytes, 0, bytes.length);
+        }
+
+        @Override
+        public URL getResource(String name) {
+            return hidden.contains(name) ? null : super.getResource(name);
+        }
+    }
+
+    @Test
+    public void testClassLoaders() {
+        try {
+            initProfileEngine();
+            AgentFileTransformer transformer = new AgentFileTransformer(new AgentConfig("func2prof:app2test.TestTransformed.handle"));
+            byte[] original = readClass(TARGET);
+
+            Assert.assertTrue("Not profiled class expected to be skipped",
+                    transformer.transform(null, "app2test/TestItem", null, null, original) == original);
+
+            // Same class name is instrumented once in every loader
+            TestLoader loader1 = new TestLoader();
+            TestLoader loader2 = new TestLoader();
+            byte[] bytes1 = transformer.transform(loader1, TARGET, null, null, original);
+            Assert.assertTrue("Class expected to be instrumented", bytes1 != null && bytes1 != original);
+            Assert.assertTrue("Class expected to be instrumented once in loader",
+                    transformer.transform(loader1, TARGET, null, null, original) == bytes1);
+            byte[] bytes2 = transformer.transform(loader2, TARGET, null, null, original);
+            Assert.assertTrue("Class expected to be instrumented in second loader", bytes2 != null && bytes2 != original && bytes2 != bytes1);
+
+            // Redefinition with original bytes keeps the probes, with instrumented bytes changes nothing
+            Assert.assertTrue("Probes expected to be kept on redefinition",
+                    transformer.transform(loader1, TARGET, Object.class, null, original) == bytes1);
+            Assert.assertTrue("Instrumented class expected to be kept as is",
+                    transformer.transform(loader1, TARGET, Object.class, null, bytes1) == null);
+
+            // Probes work in both loaders, exception finishes the call too
+            callHandle(loader1.define(bytes1));
+            callHandle(loader2.define(bytes2));
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 4 results, get " + res, res.size() == 4);
+            for (String line : res)
+                Assert.assertTrue("Unexpected result: " + line, line.startsWith("app2test.TestTransformed.handle(int);"));
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testConcurrentTransform() {
+        try {
+            initProfileEngine();
+            final AgentFileTransformer transformer = new AgentFileTransformer(new AgentConfig("func2prof:app2test.TestTransformed.handle"));
+            final byte[] original = readClass(TARGET);
+            final TestLoader shared = new TestLoader();
+            final int threads = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger ownInstrumented = new AtomicInteger();
+            final Set<byte[]> sharedBytes = Collections.newSetFromMap(new IdentityHashMap<>());
+            final AtomicReference<Class<?>> sharedClass = new AtomicReference<>();
+            final AtomicInteger errors = new AtomicInteger();
+
+            // Every thread loads the class in its own loader and in the shared one. Whichever thread defines
+            // the class in the shared loader, it has to be instrumented
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                        TestLoader own = new TestLoader();
+                        byte[] bytes = transformer.transform(own, TARGET, null, null, original);
+                        if (bytes != null && bytes != original) {
+                            own.define(bytes);
+                            ownInstrumented.incrementAndGet();
+                        }
+                        bytes = transformer.transform(shared, TARGET, null, null, original);
+                        synchronized (sharedBytes) {
+                            sharedBytes.add(bytes);
+                        }
+                        try {
+                            sharedClass.compareAndSet(null, shared.define(bytes));
+                        }
+                        catch (LinkageError ex) {
+                            // Other thread defined the class first
+                        }
+                    }
+                    catch (Throwable ex) {
+                        errors.incrementAndGet();
+                    }
+                });
+                workers[i].start();
+            }
+            start.countDown();
+            for (Thread worker : workers)
+                worker.join();
+
+            Assert.assertTrue("Unexpected errors: " + errors.get(), errors.get() == 0);
+            Assert.assertTrue("Class expected to be instrumented for every loader", ownInstrumented.get() == threads);
+            Assert.assertTrue("All loads in shared loader expected to get the same bytes", sharedBytes.size() == 1 &&
+                    !sharedBytes.contains(original) && !sharedBytes.contains(null));
+
+            callHandle(sharedClass.get());
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 2 results, get " + res, res.size() == 2);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testFailedTransform() {
+        try {
+            initProfileEngine();
+            AgentFileTransformer transformer = new AgentFileTransformer(new AgentConfig("func2prof:app2test.TestTransformed.handle"));
+            byte[] original = readClass(TARGET);
+            TestLoader loader = new TestLoader();
+
+            // Broken class file fails, the class isn't counted as instrumented in the loader
+            try {
+                transformer.transform(loader, TARGET, null, null, Arrays.copyOf(original, original.length / 2));
+                Assert.fail("IllegalClassFormatException expected");
+            }
+            catch (IllegalClassFormatException ex) {
+                // expected
+            }
+
+            byte[] bytes = transformer.transform(loader, TARGET, null, null, original);
+            Assert.assertTrue("Class expected to be instrumented after failure", bytes != null && bytes != original);
+            callHandle(loader.define(bytes));
+            Assert.assertTrue("Expected 2 results", ProfilerEngine.getResults().size() == 2);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testProbesBalanced() {
+        try {
+            initProfileEngine();
+            AgentFileTransformer transformer = new AgentFileTransformer(new AgentConfig(
+                    "func2prof:app2test.TestTransformed.handle,func2prof:app2test.TestTransformed.parse"));
+            Class<?> type = weave(transformer, new TestLoader(), TARGET);
+            Object obj = type.newInstance();
+            Method handle = type.getMethod("handle", int.class);
+            Method parse = type.getMethod("parse", String.class);
+
+            // Returns, a throw, an exception caught by the method itself, a throw from its handler
+            Object[][] calls = { {handle, 2}, {handle, -1}, {parse, "12"}, {parse, "x"}, {parse, null} };
+            for (Object[] call : calls) {
+                // Object after the call goes to the outer context only if the probes finished the call once.
+                // A missing finish leaves the call open, an extra one finishes the outer context early.
+                ProfilerEngine.startProfiling("my.test.outer", null);
+                try {
+                    ((Method) call[0]).invoke(obj, call[1]);
+                }
+                catch (InvocationTargetException ex) {
+                    Assert.assertTrue("Unexpected exception " + ex.getCause(), ex.getCause() instanceof RuntimeException);
+                }
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.finishProfiling();
+            }
+
+            // Short output: name;thread objects;thread memory;all objects;all memory
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 10 results, get " + res, res.size() == 10);
+            for (int i = 0; i < calls.length; i++) {
+                String inner = res.get(i * 2);
+                String outer = res.get(i * 2 + 1);
+                String name = "app2test.TestTransformed." + ((Method) calls[i][0]).getName() + "(";
+                Assert.assertTrue("Unexpected result: " + inner, inner.startsWith(name) && inner.contains(");0;0;"));
+                Assert.assertTrue("Unexpected result: " + outer, outer.startsWith("my.test.outer;1;0;"));
+            }
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testConstructorChain() {
+        try {
+            initProfileEngine();
+            AgentFileTransformer transformer = new AgentFileTransformer(new AgentConfig("obj2track:app2test.TestItem"));
+            Class<?> type = weave(transformer, new TestLoader(), "app2test/TestItem");
+
+            // TestItem() calls this(0), the object is counted once by TestItem(int)
+            ProfilerEngine.startProfiling("my.test.items", null);
+            type.newInstance();
+            type.getConstructor(int.class).newInstance(2);
+            ProfilerEngine.finishProfiling();
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 1 result, get " + res, res.size() == 1);
+            Assert.assertTrue("Unexpected result: " + res.get(0), res.get(0).equals("my.test.items;2;0;2;0"));
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testFrames() {
+        try {
+            initProfileEngine();
+            AgentFileTransformer transformer = new AgentFileTransformer(new AgentConfig(
+                    "func2prof:app2test.TestTransformed.pick,func2prof:app2test.TestTransformed.describe"));
+
+            // Common super class of TestFirst and TestSecond is read from class files of the loader.
+            // Class is verified when it is used, a wrong frame type fails here
+            Class<?> type = weave(transformer, new TestLoader(), TARGET);
+            Object obj = type.newInstance();
+            Method pick = type.getMethod("pick", boolean.class);
+            Method describe = type.getMethod("describe", boolean.class);
+            Assert.assertEquals("first", pick.invoke(obj, true));
+            Assert.assertEquals("second", pick.invoke(obj, false));
+            Assert.assertEquals("TestFirst", describe.invoke(obj, true));
+            Assert.assertEquals("TestItem", describe.invoke(obj, false));
+
+            // Without class files common super class is Object. It is fine where the value is used as Object,
+            // where it is used as TestBase the class fails verification
+            transformer = new AgentFileTransformer(new AgentConfig("func2prof:app2test.TestTransformed.describe"));
+            TestLoader hiding = new TestLoader("app2test/TestFirst.class", "app2test/TestItem.class");
+            type = weave(transformer, hiding, TARGET);
+            Assert.assertEquals("TestItem", type.getMethod("describe", boolean.class).invoke(type.newInstance(), false));
+
+            transformer = new AgentFileTransformer(new AgentConfig("func2prof:app2test.TestTransformed.pick"));
+            hiding = new TestLoader("app2test/TestFirst.class", "app2test/TestSecond.class");
+            try {
+                weave(transformer, hiding, TARGET).newInstance();
+                Assert.fail("Verify error expected for Object frame type");
+            }
+            catch (VerifyError ex) {
+                // expected
+            }
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 5 results, get " + res, res.size() == 5);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    // Instruments the class for the loader and defines it there
+    private static Class<?> weave(AgentFileTransformer transformer, TestLoader loader, String className) throws Exception {
+        byte[] original = readClass(className);
+        byte[] bytes = transformer.transform(loader, className, null, null, original);
+        Assert.assertTrue("Class expected to be instrumented: " + className, bytes != null && bytes != original);
+        return loader.define(className, bytes);
+    }
+
+    private static void callHandle(Class<?> type) throws Exception {
+        Object obj = type.newInstance();
+        Method handle = type.getMethod("handle", int.class);
+        Assert.assertTrue("Unexpected handle result", (Integer) handle.invoke(obj, 2) == 4);
+        try {
+            handle.invoke(obj, -1);
+            Assert.fail("Exception expected");
+        }
+        catch (InvocationTargetException ex) {
+            Assert.assertTrue("Unexpected exception", ex.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    private static byte[] readClass(String className) throws Exception {
+        try (InputStream in = TestAgentFileTransformer.class.getClassLoader().getResourceAsStream(className + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int len; (len = in.read(buf)) > 0; )
+                out.write(buf, 0, len);
+            return out.toByteArray();
+        }
+    }
+}
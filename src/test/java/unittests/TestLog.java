@@ -0,0 +1,122 @@
+package unittests;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.kbay.util.Log;
+import test.kbay.util.Print;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for Log with the asynchronous file appender
+ */
+public class TestLog {
+    private static final String WORKER = " | worker-";
+    private static final String MESSAGE = " message-";
+
+    private Path logFile;
+
+    @Before
+    public void startFileLog() throws Exception {
+        logFile = Files.createTempFile("profiler-log", ".log");
+        Log.setLogConfig(logFile.toString(), "Trace");
+    }
+
+    @After
+    public void stopFileLog() throws Exception {
+        Log.shutdown();
+        // Log has no API to go back to the console, other tests expect it
+        Field fn = Log.class.getDeclaredField("logFN");
+        fn.setAccessible(true);
+        fn.set(null, null);
+        Files.deleteIfExists(logFile);
+    }
+
+    @Test
+    public void testOrdering() {
+        try {
+            logFromThreads(4, 100);
+            Log.shutdown();
+
+            // Messages of a thread are in the order of calls
+            int[] counts = checkWorkerMessages(4);
+            for (int t = 0; t < counts.length; t++)
+                Assert.assertEquals("Lost messages of worker " + t, 100, counts[t]);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    @Test
+    public void testFullRing() {
+        try {
+            // Much more messages than ring slots. Producers wait for the flusher, nothing is dropped
+            logFromThreads(4, 5000);
+            Log.shutdown();
+
+            int[] counts = checkWorkerMessages(4);
+            for (int t = 0; t < counts.length; t++)
+                Assert.assertEquals("Lost messages of worker " + t, 5000, counts[t]);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    @Test
+    public void testCloseDrains() {
+        try {
+            // Close comes right after the burst, the flusher has most of it in the ring
+            for (int i = 0; i < 3000; i++)
+                Log.info("worker-0 message-" + i);
+            Log.shutdown();
+            Assert.assertEquals("Close didn't write all messages", 3000, checkWorkerMessages(1)[0]);
+
+            // After close logs are written synchronously
+            Log.info("after shutdown");
+            List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
+            Assert.assertTrue("Message after shutdown is lost", lines.get(lines.size() - 1).endsWith(" | after shutdown"));
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    private static void logFromThreads(int threads, int perThread) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++)
+                    Log.info("worker-" + id + MESSAGE + i);
+            }));
+        }
+        for (Thread thr : workers)
+            thr.start();
+        for (Thread thr : workers)
+            thr.join();
+    }
+
+    // Checks order of worker messages in the file, returns number of messages per worker
+    private int[] checkWorkerMessages(int threads) throws Exception {
+        int[] counts = new int[threads];
+        for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+            int idx = line.indexOf(WORKER);
+            if (idx < 0)
+                continue;
+            String[] parts = line.substring(idx + WORKER.length()).split(MESSAGE);
+            int id = Integer.parseInt(parts[0]);
+            Assert.assertEquals("Wrong order for worker " + id, counts[id], Integer.parseInt(parts[1]));
+            counts[id]++;
+        }
+        return counts;
+    }
+}
@@ -4,13 +4,52 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import test.kbay.AgentConfig;
+import test.kbay.MetricsReader;
+import test.kbay.ResultDecoder;
+import test.kbay.profiler.BinaryResultFormat;
+import test.kbay.profiler.MetricsFileFormat;
 import test.kbay.profiler.ProfilerEngine;
+import test.kbay.util.Log;
 import test.kbay.util.Print;
+import test.kbay.util.StripedCounter;
+import test.kbay.util.Time;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Unit tests for ProfilerEngine
@@ -69,6 +108,1087 @@ public class TestProfilerEngine {
     }
 
 
+    @Test
+    public void testNestedProfiling() {
+        try {
+            ProfilerEngine.reset();
+
+            ProfilerEngine.startProfiling("my.test.outer", null );
+            ProfilerEngine.processTrackingObject();
+
+            ProfilerEngine.startProfiling("my.test.inner", null );
+            ProfilerEngine.processTrackingObject();
+            ProfilerEngine.finishProfiling();
+
+            ProfilerEngine.finishProfiling();
+
+            // Inner call finished first
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected two results", res.size()==2 );
+            Assert.assertTrue( "Inner profiling result is wrong: " + res.get(0), res.get(0).equals("my.test.inner;1;0;1;0") );
+            Assert.assertTrue( "Outer profiling result is wrong: " + res.get(1), res.get(1).equals("my.test.outer;2;0;2;0") );
+
+            // Stack is empty now, unbalanced finish must be ignored
+            ProfilerEngine.finishProfiling();
+            Assert.assertTrue("Expected two results", ProfilerEngine.getResults().size()==2 );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    @Test
+    public void testThreadContexts() {
+        // Both contexts are open while both threads allocate. Thread metrics go to the own context only,
+        // 'all threads' metrics of each context count allocations of both threads
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ProfilerEngine.reset();
+            CyclicBarrier started = new CyclicBarrier(2);
+            CyclicBarrier allocated = new CyclicBarrier(2);
+            Future<?> first = executor.submit(() -> { allocateInContext("my.test.first", 3, started, allocated); return null; });
+            Future<?> second = executor.submit(() -> { allocateInContext("my.test.second", 5, started, allocated); return null; });
+            first.get();
+            second.get();
+
+            List<String> res = new ArrayList<>(ProfilerEngine.getResults());
+            Assert.assertTrue("Expected two results: " + res, res.size()==2 );
+            res.sort(null);
+            Assert.assertTrue( "First thread result is wrong: " + res.get(0), res.get(0).equals("my.test.first;3;30;8;80") );
+            Assert.assertTrue( "Second thread result is wrong: " + res.get(1), res.get(1).equals("my.test.second;5;50;8;80") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAllThreadsCounters() {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // Counter sum is the total over all stripes, any stripe value is mapped to some stripe
+            StripedCounter counter = new StripedCounter(4);
+            final int[] stripes = { 0, 1, 3, 4, 5, -1, Integer.MIN_VALUE, Integer.MAX_VALUE };
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < stripes.length; i++) {
+                final int stripe = stripes[i];
+                final long value = i + 1;
+                tasks.add(executor.submit(() -> {
+                    for (int n = 0; n < 1000; n++)
+                        counter.add(stripe, value);
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+            Assert.assertEquals("Sum over stripes is wrong", 1000 * 36, counter.sum());
+
+            // Fields are summed separately, in one pass
+            StripedCounter fields = new StripedCounter(4, 3);
+            for (int i = 0; i < stripes.length; i++) {
+                fields.add(stripes[i], 0, 1);
+                fields.add(stripes[i], 2, i + 1);
+            }
+            long[] sums = new long[3];
+            fields.sum(sums);
+            Assert.assertArrayEquals("Sums of fields are wrong", new long[] { 8, 0, 36 }, sums);
+            Assert.assertEquals("Sum of the first field is wrong", 8, fields.sum());
+
+            // 'All threads' metrics of a context is the total of all threads, whatever stripes they use
+            ProfilerEngine.reset();
+            ProfilerEngine.startProfiling("my.test.allThreads", null);
+            tasks.clear();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(executor.submit(() -> {
+                    for (int n = 0; n < 100; n++) {
+                        ProfilerEngine.processTrackingObject();
+                        ProfilerEngine.processmemoryUsage(7);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+            ProfilerEngine.finishProfiling();
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected one result", res.size()==1 );
+            Assert.assertTrue( "All threads result is wrong: " + res.get(0), res.get(0).equals("my.test.allThreads;0;0;800;5600") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testHistoryLimit() {
+        try {
+            AgentConfig config = new AgentConfig("hist:3");
+            config.shortOutput = true;
+            ProfilerEngine.init(config);
+
+            for (int i = 0; i < 5; i++) {
+                ProfilerEngine.startProfiling("my.test.hist" + i, null);
+                ProfilerEngine.finishProfiling();
+            }
+
+            // Only last 3 calls are expected, oldest first
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 3 results, get " + res, res.size()==3 );
+            for (int i = 0; i < 3; i++)
+                Assert.assertTrue( "Unexpected history item: " + res.get(i), res.get(i).startsWith("my.test.hist" + (i+2) + ";") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        try {
+            // 99 fast calls and a single slow one
+            for (int i = 0; i < 100; i++) {
+                ProfilerEngine.startProfiling("my.test.latency", null);
+                if (i == 50)
+                    Thread.sleep(50);
+                ProfilerEngine.finishProfiling();
+            }
+
+            String latency = null;
+            for (String str : ProfilerEngine.getLatencyResults()) {
+                if (str.startsWith("my.test.latency "))
+                    latency = str;
+            }
+            Assert.assertTrue("Latency for the method is not found", latency != null);
+            Assert.assertTrue("Unexpected number of calls: " + latency, latency.contains(" calls: 100,"));
+
+            // Example: my.test.latency calls: 100, mean: 0.512 ms, p50: 0.003 ms, p90: 0.004 ms, p99: 0.011 ms, p99.9: 50.135 ms, max: 50.135 ms
+            Assert.assertTrue("p50 expected to be fast: " + latency, getLatencyValue(latency, "p50") < 10);
+            Assert.assertTrue("p90 expected to be fast: " + latency, getLatencyValue(latency, "p90") < 10);
+            Assert.assertTrue("p99.9 expected to be slow: " + latency, getLatencyValue(latency, "p99.9") >= 50);
+            Assert.assertTrue("max expected to be slow: " + latency, getLatencyValue(latency, "max") >= 50);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    private static double getLatencyValue(String latency, String name) {
+        int idx = latency.indexOf(" " + name + ": ") + name.length() + 3;
+        return Double.parseDouble(latency.substring(idx, latency.indexOf(' ', idx)));
+    }
+
+    @Test
+    public void testCpuTime() {
+        try {
+            AgentConfig config = new AgentConfig("cpuTime:user");
+            ProfilerEngine.init(config);
+
+            // Busy call burns 30 ms of CPU, it takes longer on a loaded host. Waiting call sleeps
+            ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+            ProfilerEngine.startProfiling("my.test.busy", null);
+            long end = mxBean.getCurrentThreadCpuTime() + 30_000_000L;
+            long cnt = 0;
+            while (mxBean.getCurrentThreadCpuTime() < end)
+                cnt++;
+            ProfilerEngine.finishProfiling();
+
+            ProfilerEngine.startProfiling("my.test.waiting", null);
+            Thread.sleep(30);
+            ProfilerEngine.finishProfiling();
+
+            // Example: 2026-10-18 16:55:31 my.test.busy Execution time:30.001 ms. CPU time: 29.874 ms, user time: 29.000 ms. In method's ...
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected two results " + cnt, res.size()==2 );
+            Assert.assertTrue( "Busy call result is wrong: " + res.get(0), res.get(0).contains(" CPU time: ") && res.get(0).contains(", user time: ") );
+            double busyCpu = getLatencyValue(res.get(0), "CPU time");
+            double waitingCpu = getLatencyValue(res.get(1), "CPU time");
+            Assert.assertTrue( "Busy call must burn CPU: " + res.get(0), busyCpu >= 30 );
+            Assert.assertTrue( "Waiting call must not burn CPU: " + res.get(1), waitingCpu < 10 );
+            String waitTime = res.get(1).substring(res.get(1).indexOf("Execution time:") + 15);
+            Assert.assertTrue( "Waiting call must take time: " + res.get(1), Double.parseDouble(waitTime.substring(0, waitTime.indexOf(' '))) >= 29 );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testCallTree() {
+        try {
+            AgentConfig config = new AgentConfig("callTree:true,treeNodes:3");
+            ProfilerEngine.init(config);
+
+            // outer -> inner, outer -> outer (recursion) -> leaf
+            for (int i = 0; i < 2; i++) {
+                ProfilerEngine.startProfiling("my.test.tree.outer", null);
+                ProfilerEngine.processmemoryUsage(10);
+                ProfilerEngine.startProfiling("my.test.tree.inner", null);
+                ProfilerEngine.processmemoryUsage(100);
+                ProfilerEngine.finishProfiling();
+                ProfilerEngine.startProfiling("my.test.tree.outer", null);
+                ProfilerEngine.processmemoryUsage(5);
+                ProfilerEngine.startProfiling("my.test.tree.leaf", null);
+                ProfilerEngine.processmemoryUsage(1);
+                ProfilerEngine.finishProfiling();
+                ProfilerEngine.finishProfiling();
+                ProfilerEngine.finishProfiling();
+            }
+
+            // Request tree is printed with the root
+            List<String> res = ProfilerEngine.getResults();
+            String request = res.get(res.size() - 1);
+            Assert.assertTrue("Request tree is wrong: " + request, request.contains("\n  my.test.tree.inner time incl: ") &&
+                    request.contains("\n  my.test.tree.outer time incl: ") && request.contains("\n    my.test.tree.leaf time incl: ") &&
+                    request.contains(" ms, memory incl: 100, excl: 100 bytes") && request.contains(" ms, memory incl: 6, excl: 5 bytes"));
+
+            // Recursive call is folded into the outer node
+            List<String> tree = ProfilerEngine.getCallTreeResults();
+            Assert.assertTrue("Call tree is wrong: " + tree, tree.size() == 4 && tree.get(0).equals("Call tree for 2 requests:"));
+            Assert.assertTrue("Outer node is wrong: " + tree, tree.get(1).startsWith("my.test.tree.outer calls: 2, ") && tree.get(1).contains(" ms (100%), excl: ") &&
+                    tree.get(1).endsWith(" memory incl: 232, excl: 30 bytes"));
+            Assert.assertTrue("Inner node is wrong: " + tree, findTreeNode(tree, "  my.test.tree.inner calls: 2, ").endsWith(" memory incl: 200, excl: 200 bytes"));
+            Assert.assertTrue("Leaf node is wrong: " + tree, findTreeNode(tree, "  my.test.tree.leaf calls: 2, ").endsWith(" memory incl: 2, excl: 2 bytes"));
+
+            // Tree is full, new path is counted as exclusive for the parent
+            ProfilerEngine.startProfiling("my.test.tree.outer", null);
+            ProfilerEngine.startProfiling("my.test.tree.other", null);
+            ProfilerEngine.processmemoryUsage(7);
+            ProfilerEngine.finishProfiling();
+            ProfilerEngine.finishProfiling();
+
+            tree = ProfilerEngine.getCallTreeResults();
+            Assert.assertTrue("Call tree is wrong: " + tree, tree.size() == 5 &&
+                    tree.get(4).equals("Calls out of the 3 nodes limit, counted as exclusive for the parent: 1"));
+            Assert.assertTrue("Outer node is wrong: " + tree, tree.get(1).startsWith("my.test.tree.outer calls: 3, ") && tree.get(1).endsWith(" memory incl: 239, excl: 37 bytes"));
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    private static String findTreeNode(List<String> tree, String prefix) {
+        for (String node : tree) {
+            if (node.startsWith(prefix))
+                return node;
+        }
+        return "";
+    }
+
+    private static class PriorityTask implements Runnable, Callable<Object>, Comparable<PriorityTask> {
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public Object call() {
+            return null;
+        }
+
+        @Override
+        public int compareTo(PriorityTask o) {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testAsyncTasks() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ProfilerEngine.reset();
+
+            // Not in a profiled call, nothing to attach to
+            Runnable noCall = () -> {};
+            Assert.assertTrue("Task must not be wrapped", ProfilerEngine.wrapRunnable(noCall) == noCall);
+
+            ProfilerEngine.startProfiling("my.test.async", null);
+            ProfilerEngine.processTrackingObject();
+            // Executor may rely on the type of these tasks
+            FutureTask<Object> future = new FutureTask<>(() -> null);
+            Assert.assertTrue("Future must not be wrapped", ProfilerEngine.wrapRunnable(future) == future);
+            PriorityTask priority = new PriorityTask();
+            Assert.assertTrue("Comparable task must not be wrapped", ProfilerEngine.wrapRunnable(priority) == priority);
+            Assert.assertTrue("Comparable task must not be wrapped", ProfilerEngine.wrapCallable(priority) == priority);
+            Assert.assertTrue("Comparable task must not be wrapped", ProfilerEngine.wrapCallables(Collections.singletonList(priority)).contains(priority));
+            executor.submit(ProfilerEngine.wrapRunnable(() -> {
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.processmemoryUsage(100);
+            })).get();
+            executor.submit(ProfilerEngine.wrapCallable(() -> {
+                ProfilerEngine.processTrackingObject();
+                // Nested hand off from the worker belongs to the same call
+                ProfilerEngine.wrapSupplier(() -> { ProfilerEngine.processmemoryUsage(10); return null; }).get();
+                return null;
+            })).get();
+            // Task that runs in the caller thread is counted as the thread's work
+            ProfilerEngine.wrapRunnable(() -> ProfilerEngine.processmemoryUsage(1)).run();
+            ProfilerEngine.finishProfiling();
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue( "Profiling result is wrong: " + res, res.size()==1 && res.get(0).equals("my.test.async;1;1;3;111;async=2/2/110") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAllocationSampling() {
+        try {
+            final int allocs = 100000;
+            final int size = 100;
+
+            // Every allocation is processed
+            AgentConfig config = new AgentConfig("obj2track:java.lang.Long");
+            config.shortOutput = true;
+            ProfilerEngine.init(config);
+
+            ProfilerEngine.startProfiling("my.test.exact", null);
+            for (int i = 0; i < allocs; i++) {
+                ProfilerEngine.processAllocation("java/lang/Long", size);
+                ProfilerEngine.processAllocation("my/test/Other", size);
+            }
+            ProfilerEngine.finishProfiling();
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue( "Profiling result is wrong: " + res, res.size()==1 &&
+                    res.get(0).equals("my.test.exact;" + allocs + ";" + (2L*allocs*size) + ";" + allocs + ";" + (2L*allocs*size)) );
+
+            // Sampling mode. About 20000 samples, 95% bounds are about 2%. Estimates must be much closer than 10%
+            config = new AgentConfig("obj2track:java.lang.Long,allocSample:1000");
+            config.shortOutput = true;
+            ProfilerEngine.init(config);
+
+            ProfilerEngine.startProfiling("my.test.sampled", null);
+            for (int i = 0; i < allocs; i++) {
+                ProfilerEngine.processAllocation("java/lang/Long", size);
+                ProfilerEngine.processAllocation("my/test/Other", size);
+            }
+            ProfilerEngine.finishProfiling();
+
+            res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected single result", res.size()==1 );
+            String [] profInfo = res.get(0).split(";");
+            long thrObjs = Long.parseLong(profInfo[1]);
+            long thrMem = Long.parseLong(profInfo[2]);
+            Assert.assertTrue( "Objects estimate is too far: " + res.get(0), Math.abs(thrObjs - allocs) < allocs / 10 );
+            Assert.assertTrue( "Memory estimate is too far: " + res.get(0), Math.abs(thrMem - 2L*allocs*size) < 2L*allocs*size / 10 );
+
+            // Objects counted by constructors are exact in sampling mode: no samples, no error bounds
+            ProfilerEngine.init(new AgentConfig("obj2track:my.test.Item,allocSample:1000"));
+            int itemId = ProfilerEngine.registerType("my.test.Item");
+
+            ProfilerEngine.startProfiling("my.test.constructors", null);
+            for (int i = 0; i < 500; i++) {
+                ProfilerEngine.processTrackingObject(itemId);
+                ProfilerEngine.processAllocation("my/test/Item", size);
+            }
+            ProfilerEngine.finishProfiling();
+
+            res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected single result", res.size()==1 );
+            Assert.assertTrue( "Constructor counts must be exact: " + res.get(0),
+                    res.get(0).contains("In method's thread created tracking objects: 500, consumed memory: ~") &&
+                    res.get(0).contains("In all threads created tracking objects: 500, consumed memory: ~") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testTopTypes() {
+        try {
+            AgentConfig config = new AgentConfig("obj2track:java.lang.Long,topTypes:2");
+            config.shortOutput = true;
+            ProfilerEngine.init(config);
+
+            ProfilerEngine.startProfiling("my.test.outer", null);
+            ProfilerEngine.processAllocation("java/lang/Long", 16);
+            ProfilerEngine.processAllocation("my/test/Small", 8);
+
+            ProfilerEngine.startProfiling("my.test.inner", null);
+            ProfilerEngine.processAllocation("char", 100, 216);
+            ProfilerEngine.processAllocation("java/lang/Long", 16);
+            // Application type counted by constructor probe
+            ProfilerEngine.processTrackingObject( ProfilerEngine.registerType("my.test.Item") );
+            ProfilerEngine.finishProfiling();
+
+            ProfilerEngine.finishProfiling();
+
+            // Types are sorted by bytes. Caller includes types of the nested call.
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected two results", res.size()==2 );
+            Assert.assertTrue( "Inner profiling result is wrong: " + res.get(0), res.get(0).equals("my.test.inner;2;232;2;232;char[]=1/216,java.lang.Long=1/16") );
+            Assert.assertTrue( "Outer profiling result is wrong: " + res.get(1), res.get(1).equals("my.test.outer;3;256;3;256;char[]=1/216,java.lang.Long=2/32") );
+
+            // Last type cache of the thread: array of the same element type and equal name in another String
+            ProfilerEngine.reset();
+            ProfilerEngine.startProfiling("my.test.cache", null);
+            ProfilerEngine.processAllocation("java/lang/Long", 16);
+            ProfilerEngine.processAllocation("java/lang/Long", 3, 40);
+            ProfilerEngine.processAllocation(new String("java/lang/Long"), 16);
+            ProfilerEngine.finishProfiling();
+
+            res = ProfilerEngine.getResults();
+            Assert.assertTrue( "Profiling result is wrong: " + res, res.size()==1 &&
+                    res.get(0).equals("my.test.cache;2;72;2;72;java.lang.Long[]=1/40,java.lang.Long=2/32") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testTypeRegistryLimit() {
+        try {
+            // Own copy of the registry, so the types of other tests are not pushed out by the limit
+            URL classes = ProfilerEngine.class.getProtectionDomain().getCodeSource().getLocation();
+            try (URLClassLoader loader = new URLClassLoader(new URL[] { classes }, null)) {
+                Class<?> registry = loader.loadClass("test.kbay.profiler.TypeRegistry");
+                Method getId = registry.getDeclaredMethod("getId", String.class, boolean.class);
+                Method getName = registry.getDeclaredMethod("getName", int.class);
+                getId.setAccessible(true);
+                getName.setAccessible(true);
+                Field maxField = registry.getDeclaredField("MAX_TYPES");
+                Field otherField = registry.getDeclaredField("OTHER");
+                maxField.setAccessible(true);
+                otherField.setAccessible(true);
+                int max = maxField.getInt(null);
+                int other = otherField.getInt(null);
+
+                // Ids are dense up to the limit, names survive growth of the table
+                for (int i = other + 1; i < max; i++)
+                    Assert.assertEquals("Unexpected type id", i, getId.invoke(null, "my/test/Type" + i, false));
+                Assert.assertEquals("Unexpected type name", "my.test.Type" + (other + 1), getName.invoke(null, other + 1));
+                Assert.assertEquals("Unexpected type name", "my.test.Type" + (max - 1), getName.invoke(null, max - 1));
+                Assert.assertEquals("Unexpected type id", other + 1, getId.invoke(null, "my/test/Type" + (other + 1), false));
+
+                // Types after the limit are not registered
+                Assert.assertEquals("Type after limit expected to be other", other, getId.invoke(null, "my/test/Late", false));
+                Assert.assertEquals("Array after limit expected to be other", other, getId.invoke(null, "my/test/Late", true));
+                Assert.assertEquals("Unexpected type name", "[unknown]", getName.invoke(null, max));
+            }
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    @Test
+    public void testResultFile() {
+        Path resFile = Paths.get("target", "TestProfilerEngine_results.txt");
+        try {
+            Files.deleteIfExists(resFile);
+
+            AgentConfig config = new AgentConfig("resultFile:" + resFile);
+            config.shortOutput = true;
+            ProfilerEngine.init(config);
+
+            for (int i = 0; i < 3; i++) {
+                ProfilerEngine.startProfiling("my.test.file" + i, null);
+                ProfilerEngine.finishProfiling();
+            }
+
+            // Results are written in background, shutdown writes everything that is pending
+            ProfilerEngine.shutdown();
+
+            List<String> lines = Files.readAllLines(resFile);
+            Assert.assertTrue("Expected 3 lines, get " + lines, lines.size()==3 );
+            for (int i = 0; i < 3; i++)
+                Assert.assertTrue( "Unexpected result line: " + lines.get(i), lines.get(i).equals("my.test.file" + i + ";0;0;0;0") );
+
+            Files.deleteIfExists(resFile);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    // Servlet request and response stubs. Engine finds methods by name, so servlet api is not needed
+    public static class FakeRequest {
+        private final String url;
+        private final String [] params; // name, value, name, value...
+        public FakeRequest(String url, String... params) { this.url = url; this.params = params; }
+        public StringBuffer getRequestURL() { return new StringBuffer(url); }
+        public String getParameter(String name) {
+            for (int i = 0; i + 1 < params.length; i += 2) {
+                if (params[i].equals(name))
+                    return params[i + 1];
+            }
+            return null;
+        }
+    }
+
+    public static class FakeResponse {
+        public int status;
+        public String contentType;
+        public final StringWriter out = new StringWriter();
+        public void setStatus(int status) { this.status = status; }
+        public void setContentType(String contentType) { this.contentType = contentType; }
+        public PrintWriter getWriter() { return new PrintWriter(out); }
+    }
+
+    @Test
+    public void testJsonResults() {
+        try {
+            ProfilerEngine.init(new AgentConfig("hist:5"));
+            for (int i = 0; i < 8; i++) {
+                ProfilerEngine.startProfiling("my.test.json" + (i % 2 == 0 ? "A" : "B"), null);
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.finishProfiling();
+            }
+            String url = "http://localhost/app/profiler";
+
+            // Newest records, history keeps 5 of 8
+            FakeResponse resp = new FakeResponse();
+            Assert.assertTrue( ProfilerEngine.onDispatcherRequest( new FakeRequest(url, "format", "json"), resp) );
+            Assert.assertTrue( "Expected JSON response", resp.status==200 && "application/json;charset=UTF-8".equals(resp.contentType) );
+            String [] lines = resp.out.toString().split("\n");
+            Assert.assertTrue( "Unexpected page: " + resp.out, lines.length==7 && lines[0].equals("{\"records\":[") &&
+                    lines[1].startsWith("{\"seq\":3,\"time\":") && lines[1].contains(",\"method\":\"my.test.jsonB\",\"durationNs\":") &&
+                    lines[1].endsWith(",\"estimate\":false,\"thrObjs\":1,\"thrMem\":0,\"allObjs\":1,\"allMem\":0},") &&
+                    lines[5].startsWith("{\"seq\":7,") && lines[5].endsWith("}") &&
+                    lines[6].equals("],\"next\":8,\"lost\":0}") );
+
+            resp = new FakeResponse();
+            ProfilerEngine.onDispatcherRequest( new FakeRequest(url, "format", "json", "limit", "2"), resp);
+            lines = resp.out.toString().split("\n");
+            Assert.assertTrue( "Unexpected page: " + resp.out, lines.length==4 && lines[1].startsWith("{\"seq\":6,") &&
+                    lines[3].equals("],\"next\":8,\"lost\":0}") );
+
+            // Incremental polling. Calls 0-2 are overwritten already
+            resp = new FakeResponse();
+            ProfilerEngine.onDispatcherRequest( new FakeRequest(url, "format", "json", "since", "0", "limit", "1"), resp);
+            lines = resp.out.toString().split("\n");
+            Assert.assertTrue( "Unexpected page: " + resp.out, lines.length==3 && lines[1].startsWith("{\"seq\":3,") &&
+                    lines[2].equals("],\"next\":4,\"lost\":3}") );
+
+            resp = new FakeResponse();
+            ProfilerEngine.onDispatcherRequest( new FakeRequest(url, "format", "json", "since", "4", "method", "my.test.jsonB"), resp);
+            lines = resp.out.toString().split("\n");
+            Assert.assertTrue( "Unexpected page: " + resp.out, lines.length==4 && lines[1].startsWith("{\"seq\":5,") &&
+                    lines[2].startsWith("{\"seq\":7,") && lines[3].equals("],\"next\":8,\"lost\":0}") );
+
+            resp = new FakeResponse();
+            ProfilerEngine.onDispatcherRequest( new FakeRequest(url, "format", "json", "since", "8"), resp);
+            Assert.assertEquals( "{\"records\":[\n],\"next\":8,\"lost\":0}\n", resp.out.toString() );
+
+            resp = new FakeResponse();
+            Assert.assertTrue( ProfilerEngine.onDispatcherRequest( new FakeRequest(url, "format", "json", "limit", "many"), resp) );
+            Assert.assertTrue( "Unexpected page: " + resp.out, resp.status==400 && resp.out.toString().startsWith("{\"error\":") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testOpenMetrics() {
+        try {
+            ProfilerEngine.init(new AgentConfig("metricsPath:/app/prom"));
+            for (int i = 0; i < 3; i++) {
+                ProfilerEngine.startProfiling("my.test.prom\"quoted\"", null);
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.processmemoryUsage(100);
+                ProfilerEngine.finishProfiling();
+            }
+
+            FakeResponse resp = new FakeResponse();
+            Assert.assertTrue( ProfilerEngine.onDispatcherRequest( new FakeRequest("http://localhost/app/prom"), resp) );
+            Assert.assertTrue( "Expected OpenMetrics response", resp.status==200 && resp.contentType.startsWith("application/openmetrics-text;") );
+            String res = resp.out.toString();
+            String label = "{method=\"my.test.prom\\\"quoted\\\"\"";
+            Assert.assertTrue( "Unexpected metrics: " + res, res.startsWith("# TYPE profiler_method_latency_seconds histogram\n") &&
+                    res.endsWith("\n# EOF\n") &&
+                    res.contains("\nprofiler_method_latency_seconds_bucket" + label + ",le=\"60\"} 3\n") &&
+                    res.contains("\nprofiler_method_latency_seconds_bucket" + label + ",le=\"+Inf\"} 3\n") &&
+                    res.contains("\nprofiler_method_latency_seconds_count" + label + "} 3\n") &&
+                    res.contains("\n# TYPE profiler_method_calls counter\n") &&
+                    res.contains("\nprofiler_method_calls_total" + label + "} 3\n") &&
+                    res.contains("\nprofiler_method_thread_objects_total" + label + "} 3\n") &&
+                    res.contains("\nprofiler_method_thread_allocated_bytes_total" + label + "} 300\n") &&
+                    res.contains("\nprofiler_method_all_threads_objects_total" + label + "} 3\n") &&
+                    res.contains("\nprofiler_method_all_threads_allocated_bytes_total" + label + "} 300\n") );
+
+            // Default path is not served when metricsPath is set
+            resp = new FakeResponse();
+            Assert.assertFalse( ProfilerEngine.onDispatcherRequest( new FakeRequest("http://localhost/app/profiler/metrics"), resp) );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testHttpServer() {
+        try {
+            ProfilerEngine.init(new AgentConfig("httpPort:0"));
+            int port = ProfilerEngine.getHttpPort();
+            Assert.assertTrue( "Server is expected to run", port > 0 );
+            Assert.assertTrue( "Server is expected on loopback only", ProfilerEngine.getHttpAddress().isLoopbackAddress() );
+            for (int i = 0; i < 2; i++) {
+                ProfilerEngine.startProfiling("my.test.http", null);
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.finishProfiling();
+            }
+
+            String page = httpGet(port, "/any/profiler", 200);
+            Assert.assertTrue( "Unexpected page: " + page, page.startsWith("Profiler result for last 2 items:\n") &&
+                    page.contains(" my.test.http Execution time:") );
+
+            page = httpGet(port, "/profiler?format=json&limit=1&method=my.test.http", 200);
+            Assert.assertTrue( "Unexpected page: " + page, page.startsWith("{\"records\":[\n{\"seq\":1,") &&
+                    page.endsWith("\n],\"next\":2,\"lost\":0}\n") );
+            httpGet(port, "/profiler?format=json&since=x", 400);
+
+            page = httpGet(port, "/profiler/metrics", 200);
+            Assert.assertTrue( "Unexpected metrics: " + page, page.contains("\nprofiler_method_calls_total{method=\"my.test.http\"} 2\n") &&
+                    page.endsWith("# EOF\n") );
+
+            httpGet(port, "/app/page", 404);
+
+            ProfilerEngine.shutdown();
+            Assert.assertEquals( -1, ProfilerEngine.getHttpPort() );
+
+            // Exposed explicitly
+            ProfilerEngine.init(new AgentConfig("httpPort:0,httpHost:0.0.0.0"));
+            Assert.assertTrue( "Server is expected on all interfaces", ProfilerEngine.getHttpAddress().isAnyLocalAddress() );
+            httpGet(ProfilerEngine.getHttpPort(), "/profiler/metrics", 200);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    private static String httpGet(int port, String path, int expectedStatus) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        try {
+            Assert.assertEquals( "Unexpected status for " + path, expectedStatus, conn.getResponseCode() );
+            InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte [] buf = new byte[4096];
+            for (int len; (len = in.read(buf)) > 0; )
+                out.write(buf, 0, len);
+            return out.toString("UTF-8");
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void testOverhead() {
+        try {
+            ProfilerEngine.init(new AgentConfig("overhead:true"));
+            for (int i = 0; i < 3; i++) {
+                ProfilerEngine.startProfiling("my.test.overhead", null);
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.processmemoryUsage(10);
+                if (i == 0) {
+                    ProfilerEngine.startProfiling("my.test.overhead.nested", null);
+                    ProfilerEngine.finishProfiling();
+                }
+                ProfilerEngine.finishProfiling();
+            }
+
+            // Example: ... In all threads created tracking objects: 1, consumed memory: 10 bytes. Agent overhead in method's thread: 0.021 ms, 312 bytes.
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected 4 results " + res, res.size()==4 );
+            for (String r : res)
+                Assert.assertTrue("Overhead is expected: " + r, r.matches(".* bytes\\. Agent overhead in method's thread: \\d+\\.\\d{3} ms, \\d+ bytes\\.") );
+            // Outer call has start and finish of the nested call inside
+            Assert.assertTrue("Outer call has more overhead: " + res.get(1), getLatencyValue(res.get(1), "Agent overhead in method's thread") > 0 );
+
+            List<String> overhead = ProfilerEngine.getOverheadResults();
+            Assert.assertTrue("Unexpected overhead " + overhead, overhead.size()==5 && overhead.get(0).equals("Agent overhead per hook:") &&
+                    overhead.get(1).startsWith("startProfiling calls: 4, time: ") &&
+                    overhead.get(2).startsWith("finishProfiling calls: 4, time: ") &&
+                    overhead.get(3).startsWith("trackingObject calls: 3, time: ") && overhead.get(3).endsWith(" ns, memory: 0 bytes") &&
+                    overhead.get(4).startsWith("memoryUsage calls: 3, time: ") && overhead.get(4).endsWith(" ns, memory: 0 bytes") );
+
+            ProfilerEngine.init(new AgentConfig("hist:5"));
+            ProfilerEngine.startProfiling("my.test.overhead", null);
+            ProfilerEngine.finishProfiling();
+            Assert.assertFalse( ProfilerEngine.getResults().get(0).contains("Agent overhead") );
+            Assert.assertTrue( ProfilerEngine.getOverheadResults().isEmpty() );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testBinaryResultFile() {
+        Path resFile = Paths.get("target", "TestProfilerEngine_results.bin");
+        try {
+            Files.deleteIfExists(resFile);
+
+            // Two runs append two sessions
+            for (int run = 0; run < 2; run++) {
+                ProfilerEngine.init(new AgentConfig("resultFile:" + resFile + ",resultFormat:binary"));
+                for (int i = 0; i < 3; i++) {
+                    ProfilerEngine.startProfiling("my.test.bin" + (i % 2), null);
+                    ProfilerEngine.processTrackingObject();
+                    ProfilerEngine.finishProfiling();
+                }
+                ProfilerEngine.shutdown();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ResultDecoder(ResultDecoder.Format.JSON, new PrintStream(out, true, "UTF-8")).decode(resFile.toString(), false);
+            String [] lines = out.toString("UTF-8").split("\n");
+            Assert.assertTrue("Expected 6 records, get " + out, lines.length==6 );
+            for (int i = 0; i < 6; i++)
+                Assert.assertTrue( "Unexpected record: " + lines[i], lines[i].startsWith("{\"time\":") &&
+                        lines[i].contains("\"method\":\"my.test.bin" + (i % 3 % 2) + "\",\"durationNs\":") &&
+                        lines[i].endsWith("\"estimate\":false,\"thrObjs\":1,\"thrMem\":0,\"allObjs\":1,\"allMem\":0}") );
+
+            out.reset();
+            new ResultDecoder(ResultDecoder.Format.CSV, new PrintStream(out, true, "UTF-8")).decode(resFile.toString(), false);
+            lines = out.toString("UTF-8").split("\n");
+            Assert.assertTrue("Expected header and 6 records, get " + out, lines.length==7 && lines[0].startsWith("time,name,durationMs,") &&
+                    lines[1].contains(",my.test.bin0,") && lines[1].endsWith(",1,0,1,0,0,0.000,0,0") );
+
+            out.reset();
+            new ResultDecoder(ResultDecoder.Format.TEXT, new PrintStream(out, true, "UTF-8")).decode(resFile.toString(), false);
+            lines = out.toString("UTF-8").split("\n");
+            Assert.assertTrue("Expected 6 records, get " + out, lines.length==6 && lines[5].contains(" my.test.bin0 Execution time:") &&
+                    lines[5].endsWith(" In method's thread created tracking objects: 1, consumed memory: 0 bytes. In all threads created tracking objects: 1, consumed memory: 0 bytes.") );
+
+            // Record is not complete
+            byte [] data = Files.readAllBytes(resFile);
+            Files.write(resFile, Arrays.copyOf(data, data.length - 1));
+            try {
+                new ResultDecoder(ResultDecoder.Format.TEXT, new PrintStream(new ByteArrayOutputStream())).decode(resFile.toString(), false);
+                Assert.fail("Incomplete record is expected");
+            }
+            catch (IOException ex) {
+                Assert.assertTrue("Unexpected error " + ex.getMessage(), ex.getMessage().startsWith("File ends with incomplete record"));
+            }
+
+            // Long strings are cut to 16 KB before a character, not inside it. 2 and 3 byte characters
+            StringBuilder sb = new StringBuilder("a");
+            for (int i = 0; i < 9000; i++)
+                sb.append('\u00e9');
+            checkCutString(sb.toString(), 8192);
+            sb.setLength(0);
+            for (int i = 0; i < 6000; i++)
+                sb.append('\u20ac');
+            checkCutString(sb.toString(), 5461);
+            checkCutString("short \u20ac", 7);
+
+            Files.deleteIfExists(resFile);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
+    @Test
+    public void testResultWriteFailure() {
+        Path resFile = Paths.get("target", "TestProfilerEngine_failure.bin");
+        try {
+            Files.deleteIfExists(resFile);
+            ProfilerEngine.init(new AgentConfig("resultFile:" + resFile + ",resultFormat:binary"));
+
+            // Writer channel fails once. Writer is package private, the channel is replaced by reflection
+            Field writerField = ProfilerEngine.class.getDeclaredField("resultWriter");
+            writerField.setAccessible(true);
+            Object writer = writerField.get(null);
+            Field channelField = writer.getClass().getDeclaredField("channel");
+            channelField.setAccessible(true);
+            FailingChannel channel = new FailingChannel((FileChannel) channelField.get(writer));
+            channelField.set(writer, channel);
+
+            // Record with the method dictionary entry is lost
+            ProfilerEngine.startProfiling("my.test.lost", null);
+            ProfilerEngine.finishProfiling();
+            for (int i = 0; i < 100 && !channel.failed; i++)
+                Thread.sleep(50);
+            Assert.assertTrue("Write expected to fail", channel.failed);
+
+            // Next record of the method must not refer to the lost dictionary entry
+            ProfilerEngine.startProfiling("my.test.lost", null);
+            ProfilerEngine.processTrackingObject();
+            ProfilerEngine.finishProfiling();
+            ProfilerEngine.shutdown();
+
+            Field droppedField = writer.getClass().getDeclaredField("dropped");
+            droppedField.setAccessible(true);
+            Assert.assertEquals("Lost record expected to be counted", 1L, ((AtomicLong) droppedField.get(writer)).get());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ResultDecoder(ResultDecoder.Format.JSON, new PrintStream(out, true, "UTF-8")).decode(resFile.toString(), false);
+            String [] lines = out.toString("UTF-8").split("\n");
+            Assert.assertTrue("Expected 1 record, get " + out, lines.length==1 &&
+                    lines[0].contains("\"method\":\"my.test.lost\",\"durationNs\":") && lines[0].contains("\"thrObjs\":1,") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+            try {
+                Files.deleteIfExists(resFile);
+            }
+            catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    // File channel that fails the first write
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        volatile boolean failed;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!failed) {
+                failed = true;
+                throw new IOException("No space left on device");
+            }
+            return channel.write(src);
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException { return channel.read(dst); }
+        @Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return channel.read(dsts, offset, length); }
+        @Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { return channel.write(srcs, offset, length); }
+        @Override public long position() throws IOException { return channel.position(); }
+        @Override public FileChannel position(long newPosition) throws IOException { channel.position(newPosition); return this; }
+        @Override public long size() throws IOException { return channel.size(); }
+        @Override public FileChannel truncate(long size) throws IOException { channel.truncate(size); return this; }
+        @Override public void force(boolean metaData) throws IOException { channel.force(metaData); }
+        @Override public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return channel.transferTo(position, count, target); }
+        @Override public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return channel.transferFrom(src, position, count); }
+        @Override public int read(ByteBuffer dst, long position) throws IOException { return channel.read(dst, position); }
+        @Override public int write(ByteBuffer src, long position) throws IOException { return channel.write(src, position); }
+        @Override public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return channel.map(mode, position, size); }
+        @Override public FileLock lock(long position, long size, boolean shared) throws IOException { return channel.lock(position, size, shared); }
+        @Override public FileLock tryLock(long position, long size, boolean shared) throws IOException { return channel.tryLock(position, size, shared); }
+        @Override protected void implCloseChannel() throws IOException { channel.close(); }
+    }
+
+    @Test
+    public void testMetricsFile() {
+        Path metricsFile = Paths.get("target", "TestProfilerEngine.metrics");
+        try {
+            ProfilerEngine.init(new AgentConfig("hist:5,metricsFile:" + metricsFile + ",metricsInterval:20"));
+            for (int i = 0; i < 7; i++) {
+                ProfilerEngine.startProfiling("my.test.metrics", null);
+                ProfilerEngine.processTrackingObject();
+                ProfilerEngine.finishProfiling();
+            }
+            // Shutdown publishes the last values
+            ProfilerEngine.shutdown();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new MetricsReader(metricsFile.toString()).print(new PrintStream(out, true, "UTF-8"));
+            String res = out.toString("UTF-8");
+            Assert.assertTrue("Unexpected metrics " + res, res.contains("\nmy.test.metrics calls: 7, mean: ") &&
+                    res.contains(" ms, thread objects: 7, thread memory: 0 bytes\n") );
+
+            String [] lines = res.split("\n");
+            int recent = Arrays.asList(lines).indexOf("Recent 5 calls:");
+            Assert.assertTrue("Expected 5 recent calls " + res, recent > 0 && lines.length == recent + 6);
+            for (int i = recent + 1; i < lines.length; i++)
+                Assert.assertTrue("Unexpected call " + lines[i], lines[i].contains(" my.test.metrics Execution time:") &&
+                        lines[i].endsWith(" In method's thread created tracking objects: 1, consumed memory: 0 bytes. In all threads created tracking objects: 1, consumed memory: 0 bytes."));
+
+            try {
+                new MetricsReader("pom.xml");
+                Assert.fail("Not a metrics file is expected");
+            }
+            catch (IOException ex) {
+                Assert.assertEquals("Not a metrics file", ex.getMessage());
+            }
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+            try {
+                Files.deleteIfExists(metricsFile);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void testMetricsFileConcurrency() {
+        Path metricsFile = Paths.get("target", "TestProfilerEngine_seqlock.metrics");
+        Path resFile = Paths.get("target", "TestProfilerEngine_seqlock.txt");
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread worker = null;
+        try {
+            // Per call logs and results are not needed, there are thousands of calls
+            Log.setLogConfig(null, "Err");
+            ProfilerEngine.init(new AgentConfig("hist:64,metricsFile:" + metricsFile + ",metricsInterval:1,resultFile:" + resFile));
+
+            // Call with history seq s creates s % 10 + 1 objects of 7 bytes. Publisher writes a ring slot
+            // field by field, torn copy would have fields of two calls
+            worker = new Thread(() -> {
+                for (long s = 0; !stop.get(); s++) {
+                    ProfilerEngine.startProfiling("my.test.seqlock", null);
+                    for (long i = 0; i <= s % 10; i++) {
+                        ProfilerEngine.processTrackingObject();
+                        ProfilerEngine.processmemoryUsage(7);
+                    }
+                    ProfilerEngine.finishProfiling();
+                }
+            });
+            worker.start();
+
+            MetricsReader reader = new MetricsReader(metricsFile.toString());
+            int slots = 0;
+            long end = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < end) {
+                ByteBuffer buf = reader.snapshot();
+                // Header is copied first, a copy made during update would have ring slots newer than the head
+                long head = buf.getLong(MetricsFileFormat.H_RING_HEAD);
+                Assert.assertTrue("Snapshot during update", buf.getLong(MetricsFileFormat.H_SEQ) % 2 == 0);
+                int ringOffset = buf.getInt(MetricsFileFormat.H_RING_OFFSET);
+                for (int i = 0; i < buf.getInt(MetricsFileFormat.H_RING_CAPACITY); i++) {
+                    int off = ringOffset + i * buf.getInt(MetricsFileFormat.H_RING_SIZE);
+                    long seq = buf.getLong(off + MetricsFileFormat.R_SEQ);
+                    if (seq < 0)
+                        continue;
+                    long objs = buf.getLong(off + MetricsFileFormat.R_THR_OBJS);
+                    long mem = buf.getLong(off + MetricsFileFormat.R_THR_MEM);
+                    Assert.assertTrue("Torn snapshot: call " + seq + " objects " + objs + " memory " + mem + " head " + head,
+                            seq < head && objs == seq % 10 + 1 && mem == objs * 7 && buf.getLong(off + MetricsFileFormat.R_ALL_OBJS) == objs);
+                    slots++;
+                }
+            }
+            Assert.assertTrue("No calls are published", slots > 0);
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            stop.set(true);
+            try {
+                if (worker != null)
+                    worker.join();
+            } catch (InterruptedException ignore) {
+            }
+            Log.setLogConfig(null, "Trace");
+            initProfileEngine();
+            try {
+                Files.deleteIfExists(metricsFile);
+                Files.deleteIfExists(resFile);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void testRequestProfiling() {
+        try {
+            ProfilerEngine.reset();
+
+            // URL substitutes method name
+            ProfilerEngine.startProfiling("my.test.handler", new FakeRequest("http://localhost/app/page") );
+            ProfilerEngine.finishProfiling();
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected single result", res.size()==1 );
+            Assert.assertTrue( "Profiling result is wrong: " + res.get(0), res.get(0).equals("http://localhost/app/page;0;0;0;0") );
+
+            // Not a profiler URL. Dispatcher must continue
+            FakeResponse resp = new FakeResponse();
+            Assert.assertFalse( ProfilerEngine.onDispatcherRequest( new FakeRequest("http://localhost/app/page"), resp) );
+            Assert.assertTrue( "Response expected to be untouched", resp.status==0 && resp.out.toString().isEmpty() );
+
+            // Profiler URL. Result page expected
+            Assert.assertTrue( ProfilerEngine.onDispatcherRequest( new FakeRequest("http://localhost/app/profiler"), resp) );
+            Assert.assertTrue( "Expected 200 status", resp.status==200 );
+            Assert.assertTrue( "Unexpected page: " + resp.out, resp.out.toString().startsWith("Profiler result for last 1 items:") );
+            Assert.assertTrue( "Unexpected page: " + resp.out, resp.out.toString().contains("http://localhost/app/page;0;0;0;0") );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+    }
+
+    @Test
+    public void testLazyName() {
+        try {
+            // Full output: the name is built by report, it must be the same as the name built at start was:
+            // start time, then URL or method name
+            ProfilerEngine.init(new AgentConfig("hist:5"));
+            ProfilerEngine.reset();
+
+            String before = Time.getCurrentTimeAsString();
+            ProfilerEngine.startProfiling("my/test/lazyName", null );
+            ProfilerEngine.startProfiling("my.test.handler", new FakeRequest("http://localhost/app/lazy") );
+            ProfilerEngine.finishProfiling();
+            ProfilerEngine.finishProfiling();
+            String after = Time.getCurrentTimeAsString();
+
+            // Report time differs from start time
+            while (after.equals(Time.getCurrentTimeAsString()))
+                Thread.sleep(10);
+
+            List<String> res = ProfilerEngine.getResults();
+            Assert.assertTrue("Expected two results", res.size()==2 );
+            Assert.assertTrue( "URL name is wrong: " + res.get(0), isEagerName(res.get(0), "http://localhost/app/lazy", before, after) );
+            Assert.assertTrue( "Method name is wrong: " + res.get(1), isEagerName(res.get(1), "my.test.lazyName", before, after) );
+        }
+        catch (Exception ex) {
+            Assert.fail("Get an exception:\n" + Print.printExceptionStack(ex));
+        }
+        finally {
+            initProfileEngine();
+        }
+    }
+
     @Test
     public void stressTestProfilerEngine() {
         //
@@ -143,6 +1263,30 @@ public class TestProfilerEngine {
         }
     }
 
+    private static void checkCutString(String str, int chars) {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        BinaryResultFormat.putString(buf, str);
+        buf.flip();
+        String res = BinaryResultFormat.getString(buf);
+        Assert.assertEquals("String is cut wrong", str.substring(0, chars), res);
+    }
+
+    // Start time is between 'before' and 'after' time, seconds precision
+    private static boolean isEagerName(String result, String name, String before, String after) {
+        return result.startsWith(before + " " + name + " Execution time:") || result.startsWith(after + " " + name + " Execution time:");
+    }
+
+    private static void allocateInContext(String name, int objects, CyclicBarrier started, CyclicBarrier allocated) throws Exception {
+        ProfilerEngine.startProfiling(name, null);
+        started.await();
+        for (int i = 0; i < objects; i++) {
+            ProfilerEngine.processTrackingObject();
+            ProfilerEngine.processmemoryUsage(10);
+        }
+        allocated.await();
+        ProfilerEngine.finishProfiling();
+    }
+
     private void processObjectFromDifferentThread() throws InterruptedException {
         Thread thr = new Thread() {
             @Override